@@ -0,0 +1,93 @@
+/**
+ * This program and the accompanying materials
+ * are made available under the terms of the License
+ * which accompanies this distribution in the file LICENSE.txt
+ */
+package org.archicontribs.grafico;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+
+/**
+ * Content hash of GRAFICO files (XML and images).
+ * It is computed the same way git computes blob ids (SHA-1 of "blob &lt;length&gt;\0"
+ * followed by the content) so that it can be compared with git's own ids.
+ */
+final class ContentHash {
+
+	private static final char[] HEX = "0123456789abcdef".toCharArray(); //$NON-NLS-1$
+
+	private ContentHash() {
+	}
+
+	/**
+	 * Hash of an array of bytes
+	 *
+	 * @param bytes
+	 * @return
+	 */
+	static String of(byte[] bytes) {
+		return of(bytes, 0, bytes.length);
+	}
+
+	/**
+	 * Hash of a part of an array of bytes
+	 *
+	 * @param bytes
+	 * @param offset
+	 * @param length
+	 * @return
+	 */
+	static String of(byte[] bytes, int offset, int length) {
+		MessageDigest digest = newDigest(length);
+		digest.update(bytes, offset, length);
+		return toHex(digest.digest());
+	}
+
+	/**
+	 * Hash of a file, read through a channel without loading it fully in memory
+	 *
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	static String of(File file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			MessageDigest digest = newDigest(channel.size());
+			ByteBuffer buffer = ByteBuffer.allocate(8192);
+			while (channel.read(buffer) != -1) {
+				buffer.flip();
+				digest.update(buffer);
+				buffer.clear();
+			}
+			return toHex(digest.digest());
+		}
+	}
+
+	private static MessageDigest newDigest(long length) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-1"); //$NON-NLS-1$
+			digest.update(("blob " + length + "\0").getBytes(StandardCharsets.US_ASCII)); //$NON-NLS-1$ //$NON-NLS-2$
+			return digest;
+		} catch (NoSuchAlgorithmException e) {
+			// SHA-1 is available on every Java platform
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static String toHex(byte[] bytes) {
+		char[] chars = new char[bytes.length * 2];
+		for (int i = 0; i < bytes.length; i++) {
+			chars[i * 2] = HEX[(bytes[i] >> 4) & 0xf];
+			chars[i * 2 + 1] = HEX[bytes[i] & 0xf];
+		}
+		return new String(chars);
+	}
+}
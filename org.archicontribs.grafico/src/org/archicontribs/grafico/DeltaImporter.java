@@ -0,0 +1,589 @@
+/**
+ * This program and the accompanying materials
+ * are made available under the terms of the License
+ * which accompanies this distribution in the file LICENSE.txt
+ */
+package org.archicontribs.grafico;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.MultiStatus;
+import org.eclipse.core.runtime.Status;
+import org.eclipse.emf.ecore.EObject;
+import org.eclipse.emf.ecore.EReference;
+import org.eclipse.emf.ecore.EStructuralFeature;
+import org.eclipse.emf.ecore.util.EcoreUtil;
+import org.eclipse.gef.commands.Command;
+import org.eclipse.gef.commands.CommandStack;
+import org.eclipse.jface.dialogs.ErrorDialog;
+import org.eclipse.jface.dialogs.MessageDialog;
+import org.eclipse.swt.widgets.DirectoryDialog;
+import org.eclipse.swt.widgets.Display;
+
+import com.archimatetool.editor.model.IArchiveManager;
+import com.archimatetool.editor.model.IEditorModelManager;
+import com.archimatetool.editor.model.IModelImporter;
+import com.archimatetool.editor.preferences.Preferences;
+import com.archimatetool.model.FolderType;
+import com.archimatetool.model.IArchimateModel;
+import com.archimatetool.model.IArchimatePackage;
+import com.archimatetool.model.IArchimateRelationship;
+import com.archimatetool.model.IDiagramModel;
+import com.archimatetool.model.IDiagramModelArchimateConnection;
+import com.archimatetool.model.IDiagramModelArchimateObject;
+import com.archimatetool.model.IFolder;
+import com.archimatetool.model.IFolderContainer;
+import com.archimatetool.model.IIdentifier;
+import com.archimatetool.model.INameable;
+
+
+/**
+ * GRAFICO Delta Importer
+ * Apply the files of a GRAFICO folder which have been added, modified or deleted (e.g. by a
+ * "git pull") to the model already open in Archi, instead of importing the whole model again.
+ *
+ * Changed files are either given, or found by comparing the folder with the state recorded
+ * during last import or export (see GraficoState). Changed files are parsed first (this can be
+ * done from any thread), then applied to the open model from the UI thread: objects are updated
+ * in place, added or removed by id (see ModelIndex), and references of changed relationships and views
+ * are bound again. An object which is deleted but still referenced by the model is kept, and reported.
+ * Changes are applied by a command, so that the model is marked as changed. This command can't be
+ * undone, and neither can earlier ones, as the model doesn't match them anymore.
+ */
+public class DeltaImporter implements IModelImporter {
+
+	private File folder;
+	private String modelId;
+	// Files parsed, in the order they have to be applied
+	private List<ParsedFile> parsedFiles;
+	private List<File> deletedFiles;
+	private List<File> imageFiles;
+	private MultiStatus errors;
+
+	@Override
+	public void doImport() throws IOException {
+		File folder = askOpenFolder();
+
+		if (folder == null) {
+			return;
+		}
+
+		GraficoState state = new GraficoState(folder);
+		if (!state.exists()) {
+			MessageDialog.openInformation(Display.getCurrent().getActiveShell(), Messages.DeltaImporter_0, Messages.DeltaImporter_1);
+			return;
+		}
+
+		GraficoState.Changes changes = state.scan();
+		if (changes.isEmpty()) {
+			MessageDialog.openInformation(Display.getCurrent().getActiveShell(), Messages.DeltaImporter_0, Messages.DeltaImporter_3);
+			return;
+		}
+
+		List<File> changedFiles = new ArrayList<File>(changes.added);
+		changedFiles.addAll(changes.modified);
+		prepare(folder, changedFiles, changes.deleted);
+
+		if (apply() == null) {
+			MessageDialog.openInformation(Display.getCurrent().getActiveShell(), Messages.DeltaImporter_0, Messages.DeltaImporter_2);
+			return;
+		}
+		state.save();
+		GraficoWatcher.watch(folder);
+
+		// Show warnings and errors (if any)
+		if (errors != null)
+			ErrorDialog.openError(
+					Display.getCurrent().getActiveShell(),
+					Messages.DeltaImporter_0,
+					Messages.MyImporter_2,
+					errors);
+	}
+
+	/**
+	 * Parse changed files. Can be called from any thread.
+	 *
+	 * @param folder GRAFICO folder
+	 * @param changedFiles files added or modified (in model or images folders)
+	 * @param deletedFiles files deleted
+	 * @throws IOException
+	 */
+	public void prepare(File folder, Collection<File> changedFiles, Collection<File> deletedFiles) throws IOException {
+		this.folder = folder;
+		File modelFolder = new File(folder, MyExporter.MODEL_FOLDER);
+		File imagesFolder = new File(folder, MyExporter.IMAGES_FOLDER);
+		GraficoReader reader = new GraficoReader();
+
+		// The model has the id found in the root folder.xml
+		modelId = ((IIdentifier) reader.load(new File(modelFolder, MyExporter.FOLDER_XML))).getId();
+
+		parsedFiles = new ArrayList<ParsedFile>();
+		imageFiles = new ArrayList<File>();
+		for (File file: changedFiles) {
+			if (isInside(file, imagesFolder)) {
+				imageFiles.add(file);
+			} else if (isModelFile(file, modelFolder)) {
+				parsedFiles.add(new ParsedFile(file, (IIdentifier) reader.load(file)));
+			}
+		}
+		this.deletedFiles = new ArrayList<File>();
+		for (File file: deletedFiles) {
+			if (isModelFile(file, modelFolder)) {
+				this.deletedFiles.add(file);
+			}
+		}
+
+		// Folders first (parents before children), then elements, relationships and views
+		Collections.sort(parsedFiles, new Comparator<ParsedFile>() {
+			@Override
+			public int compare(ParsedFile f1, ParsedFile f2) {
+				int result = Integer.compare(getRank(f1.object), getRank(f2.object));
+				return result != 0 ? result : Integer.compare(f1.file.getPath().length(), f2.file.getPath().length());
+			}
+		});
+	}
+
+	/**
+	 * Must be called from the UI thread, once files have been parsed.
+	 *
+	 * @return the open model with the same id as the one saved in the folder, or null if it is not open
+	 */
+	public IArchimateModel getModel() {
+		IArchimateModel model = null;
+		for (IArchimateModel openModel: IEditorModelManager.INSTANCE.getModels()) {
+			if (modelId.equals(openModel.getId())) {
+				model = openModel;
+			}
+		}
+		return model;
+	}
+
+	/**
+	 * Apply parsed files to the open model with the same id. Must be called from the UI thread.
+	 *
+	 * @return the model, or null if it is not open
+	 */
+	public IArchimateModel apply() {
+		IArchimateModel model = getModel();
+		if (model == null) {
+			return null;
+		}
+		errors = null;
+
+		CommandStack commandStack = (CommandStack) model.getAdapter(CommandStack.class);
+		if (commandStack == null) {
+			applyChanges(model);
+			return model;
+		}
+		// Executed as a command so that the model is marked as changed (and must be saved)
+		final IArchimateModel changedModel = model;
+		commandStack.execute(new Command(Messages.DeltaImporter_0) {
+			@Override
+			public void execute() {
+				applyChanges(changedModel);
+			}
+
+			@Override
+			public boolean canUndo() {
+				return false;
+			}
+		});
+		return model;
+	}
+
+	/**
+	 * Apply parsed files and deleted files to a model
+	 *
+	 * @param model
+	 */
+	private void applyChanges(IArchimateModel model) {
+		ModelIndex index = ModelIndex.get(model);
+		Map<String, IIdentifier> idLookup = index.getObjects();
+
+		// Add or update objects
+		MyImporter importer = new MyImporter();
+		List<EObject> proxyHolders = new ArrayList<EObject>();
+		Set<String> updatedIds = new HashSet<String>();
+		for (ParsedFile parsedFile: parsedFiles) {
+			IIdentifier object = upsert(model, parsedFile, index);
+			if (object != null) {
+				updatedIds.add(object.getId());
+				proxyHolders.addAll(importer.getProxyHolders(object));
+			}
+		}
+
+		// Bind references of changed relationships and views (before objects are removed, so that
+		// references to removed objects are found)
+		addErrors(importer.resolveProxies(proxyHolders, idLookup));
+
+		// Remove objects (unless they have just been moved to another file)
+		List<IIdentifier> deletedObjects = new ArrayList<IIdentifier>();
+		for (File file: deletedFiles) {
+			String id = getId(file);
+			IIdentifier object = idLookup.get(id);
+			if (object != null && object != model && !updatedIds.contains(id)) {
+				deletedObjects.add(object);
+			}
+		}
+		keepReferencedObjects(deletedObjects, index);
+		// Views first, then relationships, elements and folders (children before parents)
+		Collections.sort(deletedObjects, new Comparator<IIdentifier>() {
+			@Override
+			public int compare(IIdentifier o1, IIdentifier o2) {
+				int result = Integer.compare(getRank(o2), getRank(o1));
+				return result != 0 ? result : Integer.compare(getDepth(o2), getDepth(o1));
+			}
+		});
+		for (IIdentifier object: deletedObjects) {
+			removeDiagramReferences(object);
+			EcoreUtil.remove(object);
+		}
+
+		// Add changed images
+		if (!imageFiles.isEmpty()) {
+			IArchiveManager archiveManager = (IArchiveManager) model.getAdapter(IArchiveManager.class);
+			for (File imageFile: imageFiles) {
+				try {
+					archiveManager.addByteContentEntry(folder.toURI().relativize(imageFile.toURI()).getPath(), Files.readAllBytes(imageFile.toPath()));
+				} catch (IOException e) {
+					addErrors(new Status(IStatus.ERROR, "org.archicontribs.grafico", String.format(Messages.DeltaImporter_4, imageFile.getAbsolutePath()), e)); //$NON-NLS-1$
+				}
+			}
+		}
+	}
+
+	/**
+	 * Remove from the objects to delete those which are still used by objects which are kept
+	 * (references which are saved, or elements and subfolders of a folder), and report them
+	 *
+	 * @param deletedObjects
+	 * @param index
+	 */
+	private void keepReferencedObjects(List<IIdentifier> deletedObjects, ModelIndex index) {
+		Set<EObject> deleted = new HashSet<EObject>(deletedObjects);
+		// Keeping an object may keep the objects it uses
+		boolean kept = true;
+		while (kept) {
+			kept = false;
+			for (Iterator<IIdentifier> iter = deletedObjects.iterator(); iter.hasNext();) {
+				IIdentifier object = iter.next();
+				EObject user = findUser(object, deleted, index);
+				if (user != null) {
+					addErrors(new Status(IStatus.ERROR, "org.archicontribs.grafico", String.format(Messages.DeltaImporter_5, getLabel(object), getLabel(user)))); //$NON-NLS-1$
+					deleted.remove(object);
+					iter.remove();
+					kept = true;
+				}
+			}
+		}
+	}
+
+	/**
+	 * @param object
+	 * @param deleted objects which are deleted (with their content)
+	 * @param index
+	 * @return an object which is kept and uses this object or its content (or null if none)
+	 */
+	private static EObject findUser(IIdentifier object, Set<EObject> deleted, ModelIndex index) {
+		if (object instanceof IFolder) {
+			List<EObject> children = new ArrayList<EObject>(((IFolder) object).getFolders());
+			children.addAll(((IFolder) object).getElements());
+			for (EObject child: children) {
+				if (!deleted.contains(child)) {
+					return child;
+				}
+			}
+		}
+
+		List<EObject> objects = new ArrayList<EObject>();
+		objects.add(object);
+		for (Iterator<EObject> iter = object.eAllContents(); iter.hasNext();) {
+			objects.add(iter.next());
+		}
+		for (EObject eObject: objects) {
+			for (EStructuralFeature.Setting setting: index.getInverseReferences(eObject)) {
+				EStructuralFeature feature = setting.getEStructuralFeature();
+				if (!feature.isTransient() && !feature.isDerived() && !isDeleted(setting.getEObject(), deleted)) {
+					return setting.getEObject();
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return true if an object is deleted, or inside a deleted object
+	 */
+	private static boolean isDeleted(EObject object, Set<EObject> deleted) {
+		for (EObject eObject = object; eObject != null; eObject = eObject.eContainer()) {
+			if (deleted.contains(eObject)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static int getDepth(EObject object) {
+		int depth = 0;
+		for (EObject eObject = object.eContainer(); eObject != null; eObject = eObject.eContainer()) {
+			depth++;
+		}
+		return depth;
+	}
+
+	/**
+	 * @return type and id of an object (and name if it has one), for error messages
+	 */
+	private static String getLabel(EObject object) {
+		StringBuilder label = new StringBuilder(object.eClass().getName());
+		if (object instanceof INameable && ((INameable) object).getName() != null) {
+			label.append(" \"").append(((INameable) object).getName()).append('"'); //$NON-NLS-1$
+		}
+		if (object instanceof IIdentifier) {
+			label.append(" (").append(((IIdentifier) object).getId()).append(')'); //$NON-NLS-1$
+		}
+		return label.toString();
+	}
+
+	/**
+	 * Rank of an object in the order objects are added: folders, elements, relationships and views
+	 * (objects are removed in reverse order)
+	 */
+	private static int getRank(EObject object) {
+		if (object instanceof IFolder) {
+			return 0;
+		} else if (object instanceof IArchimateRelationship) {
+			return 2;
+		} else if (object instanceof IDiagramModel) {
+			return 3;
+		}
+		return 1;
+	}
+
+	/**
+	 * @return references which could not be resolved during last apply (or null if none)
+	 */
+	public MultiStatus getErrors() {
+		return errors;
+	}
+
+	/**
+	 * Update an object of the model (or add it if it doesn't exist yet) from a parsed file
+	 *
+	 * @param model
+	 * @param parsedFile
+	 * @param index
+	 * @return the object now in the model (or null if it can't be added)
+	 */
+	private IIdentifier upsert(IArchimateModel model, ParsedFile parsedFile, ModelIndex index) {
+		Map<String, IIdentifier> idLookup = index.getObjects();
+		IIdentifier object = parsedFile.object;
+		IIdentifier existing = idLookup.get(object.getId());
+
+		// The model itself
+		if (existing == model) {
+			update(model, object);
+			return model;
+		}
+
+		IFolderContainer parent = getParent(model, parsedFile.file, idLookup);
+		if (parent == null || (!(object instanceof IFolder) && !(parent instanceof IFolder))) {
+			addErrors(new Status(IStatus.ERROR, "org.archicontribs.grafico", String.format(Messages.DeltaImporter_4, parsedFile.file.getAbsolutePath()))); //$NON-NLS-1$
+			return null;
+		}
+
+		if (existing != null && existing.eClass() == object.eClass()) {
+			// Update in place, so that objects referencing it don't have to change
+			removeDiagramReferences(existing);
+			update(existing, object);
+			object = existing;
+		} else if (existing != null) {
+			// Type has changed: replace object everywhere it is referenced
+			removeDiagramReferences(existing);
+			for (EStructuralFeature.Setting setting: new ArrayList<EStructuralFeature.Setting>(index.getInverseReferences(existing))) {
+				if (setting.getEStructuralFeature().isChangeable()) {
+					EcoreUtil.replace(setting, existing, object);
+				}
+			}
+			EcoreUtil.remove(existing);
+		}
+
+		// Add or move object to its folder (which indexes it)
+		if (object.eContainer() != parent) {
+			if (object instanceof IFolder) {
+				parent.getFolders().add((IFolder) object);
+			} else {
+				((IFolder) parent).getElements().add(object);
+			}
+		}
+
+		return object;
+	}
+
+	/**
+	 * Copy all features of an object to another one of the same type (except subfolders and
+	 * folder elements, which are saved in their own files)
+	 *
+	 * @param target
+	 * @param source
+	 */
+	private void update(EObject target, EObject source) {
+		for (EStructuralFeature feature: target.eClass().getEAllStructuralFeatures()) {
+			if (!feature.isChangeable() || feature.isDerived() || feature.isTransient()
+					|| feature == IArchimatePackage.Literals.FOLDER_CONTAINER__FOLDERS || feature == IArchimatePackage.Literals.FOLDER__ELEMENTS
+					|| (feature instanceof EReference && ((EReference) feature).isContainer())) {
+				continue;
+			}
+			if (feature.isMany() && feature instanceof EReference && ((EReference) feature).isContainment()) {
+				// Move contained objects (the list is copied as moving them changes the source list)
+				@SuppressWarnings("unchecked")
+				List<EObject> contents = (List<EObject>) target.eGet(feature);
+				@SuppressWarnings("unchecked")
+				List<EObject> newContents = new ArrayList<EObject>((List<EObject>) source.eGet(feature));
+				contents.clear();
+				contents.addAll(newContents);
+			} else {
+				target.eSet(feature, source.eGet(feature));
+			}
+		}
+	}
+
+	/**
+	 * Remove diagram objects and connections of a view from cross-references of the elements and relationships they show
+	 *
+	 * @param object
+	 */
+	private void removeDiagramReferences(EObject object) {
+		for (Iterator<EObject> iter = object.eAllContents(); iter.hasNext();) {
+			EObject eObject = iter.next();
+			if (eObject instanceof IDiagramModelArchimateObject) {
+				IDiagramModelArchimateObject diagramObject = (IDiagramModelArchimateObject) eObject;
+				if (diagramObject.getArchimateElement() != null && !diagramObject.getArchimateElement().eIsProxy()) {
+					diagramObject.getArchimateElement().getReferencingDiagramObjects().remove(diagramObject);
+				}
+			} else if (eObject instanceof IDiagramModelArchimateConnection) {
+				IDiagramModelArchimateConnection connection = (IDiagramModelArchimateConnection) eObject;
+				if (connection.getArchimateRelationship() != null && !connection.getArchimateRelationship().eIsProxy()) {
+					connection.getArchimateRelationship().getReferencingDiagramConnections().remove(connection);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Find the folder (or model) which has to contain the object saved in a file
+	 *
+	 * @param model
+	 * @param file
+	 * @param idLookup
+	 * @return
+	 */
+	private IFolderContainer getParent(IArchimateModel model, File file, Map<String, IIdentifier> idLookup) {
+		File directory = file.getParentFile();
+		// A folder is saved in its own directory, and an element may be saved in a shard of its folder
+		if (file.getName().equals(MyExporter.FOLDER_XML)) {
+			directory = directory.getParentFile();
+		} else if (GraficoLayout.isShard(directory.getName()) && !(new File(directory, MyExporter.FOLDER_XML)).isFile()) {
+			directory = directory.getParentFile();
+		}
+
+		File modelFolder = new File(folder, MyExporter.MODEL_FOLDER);
+		if (directory.equals(modelFolder)) {
+			return model;
+		}
+		// Top level folders are named after their type, user folders after their id
+		if (directory.getParentFile().equals(modelFolder)) {
+			FolderType type = FolderType.get(directory.getName());
+			return type == null ? null : model.getFolder(type);
+		}
+		IIdentifier parent = idLookup.get(directory.getName());
+		return parent instanceof IFolder ? (IFolder) parent : null;
+	}
+
+	/**
+	 * Id of the object saved in a file (Class_id.xml, or directory name for folders)
+	 *
+	 * @param file
+	 * @return
+	 */
+	static String getId(File file) {
+		String name = file.getName();
+		if (name.equals(MyExporter.FOLDER_XML)) {
+			return file.getParentFile().getName();
+		}
+		int start = name.indexOf('_') + 1;
+		int end = name.endsWith(".xml") ? name.length() - 4 : name.length(); //$NON-NLS-1$
+		return name.substring(start, end);
+	}
+
+	private static boolean isInside(File file, File folder) {
+		return file.getAbsolutePath().startsWith(folder.getAbsolutePath() + File.separator);
+	}
+
+	/**
+	 * @return true if a file of the model folder holds an object (and is not the layout file)
+	 */
+	private static boolean isModelFile(File file, File modelFolder) {
+		return isInside(file, modelFolder) && file.getName().endsWith(".xml"); //$NON-NLS-1$
+	}
+
+	private void addErrors(IStatus status) {
+		if (status == null) {
+			return;
+		}
+		// Create errors the first time
+		if (errors == null)
+			errors = new MultiStatus("org.archicontribs.grafico", IStatus.ERROR, Messages.MyImporter_4, null); //$NON-NLS-1$
+		if (status instanceof MultiStatus) {
+			errors.addAll(status);
+		} else {
+			errors.add(status);
+		}
+	}
+
+	/**
+	 * Ask user to select a folder.
+	 */
+	private File askOpenFolder() {
+		DirectoryDialog dialog = new DirectoryDialog(Display.getCurrent().getActiveShell());
+		// Set default path from preference
+		dialog.setFilterPath(Preferences.STORE.getString(MyExporter.PREF_LAST_FOLDER));
+		dialog.setText(Messages.DeltaImporter_0);
+		dialog.setMessage(Messages.MyImporter_0);
+		String path = dialog.open();
+
+		if (path == null) {
+			return null;
+		}
+
+		// Save choosen path in preference
+		Preferences.STORE.setValue(MyExporter.PREF_LAST_FOLDER, path);
+
+		return new File(path);
+	}
+
+	/**
+	 * Object parsed from a changed file
+	 */
+	private static class ParsedFile {
+		File file;
+		IIdentifier object;
+
+		ParsedFile(File file, IIdentifier object) {
+			this.file = file;
+			this.object = object;
+		}
+	}
+}
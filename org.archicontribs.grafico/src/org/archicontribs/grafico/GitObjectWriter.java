@@ -0,0 +1,798 @@
+/**
+ * This program and the accompanying materials
+ * are made available under the terms of the License
+ * which accompanies this distribution in the file LICENSE.txt
+ */
+package org.archicontribs.grafico;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+
+/**
+ * Writer of GRAFICO files straight into the object database of a bare git repository,
+ * without any working tree.
+ *
+ * Each file becomes a blob (its id is its content hash, see ContentHash), written as a loose object
+ * only if the repository doesn't have it yet, loose or packed. Once all files have been added, commit()
+ * builds their trees, replaces the model and images trees of the current commit with them (other
+ * entries are kept) and creates a commit on the current branch, as "git add -A" and "git commit"
+ * would after an export to a working tree.
+ *
+ * Only what this needs of git is implemented: loose objects, version 2 pack indexes, packed objects
+ * (including deltas) to read the current commit, loose and packed refs, and reflogs (if they exist).
+ */
+class GitObjectWriter {
+
+	private static final int TYPE_COMMIT = 1;
+	private static final int TYPE_TREE = 2;
+	private static final int TYPE_BLOB = 3;
+	private static final int TYPE_TAG = 4;
+	private static final int TYPE_OFS_DELTA = 6;
+	private static final int TYPE_REF_DELTA = 7;
+
+	private static final String MODE_FILE = "100644"; //$NON-NLS-1$
+	private static final String MODE_TREE = "40000"; //$NON-NLS-1$
+
+	private final File gitDir;
+	private final File objectsDir;
+	// Configuration of the user, overridden by the one of the repository
+	private final Map<String, String> config = new HashMap<String, String>();
+	private final List<PackIndex> packs = new ArrayList<PackIndex>();
+
+	// Path -> blob id of each file added
+	private final Map<String, String> files = new ConcurrentHashMap<String, String>();
+
+	// Number of objects actually written
+	private final AtomicLong writtenObjects = new AtomicLong();
+
+	// Deflaters are not thread safe, so each worker thread uses its own one (git's default loose compression)
+	private final ThreadLocal<Deflater> deflater = new ThreadLocal<Deflater>() {
+		@Override
+		protected Deflater initialValue() {
+			return new Deflater(Deflater.BEST_SPEED);
+		}
+	};
+
+	/**
+	 * Open a bare git repository
+	 *
+	 * @param repository
+	 * @throws IOException if this is not a bare git repository, if it doesn't use SHA-1 object ids,
+	 * or if no identity is configured for commits
+	 */
+	GitObjectWriter(File repository) throws IOException {
+		if (new File(repository, ".git").exists()) { //$NON-NLS-1$
+			// Index and working tree would not match the new commit anymore
+			throw new IOException("Not a bare repository: " + repository); //$NON-NLS-1$
+		}
+		if (!new File(repository, "HEAD").isFile() || !new File(repository, "objects").isDirectory()) { //$NON-NLS-1$ //$NON-NLS-2$
+			throw new IOException("Not a git repository: " + repository); //$NON-NLS-1$
+		}
+		// The .git directory of a clone (or a repository with core.worktree set) is not bare either
+		Map<String, String> repositoryConfig = new HashMap<String, String>();
+		readConfig(new File(repository, "config"), repositoryConfig); //$NON-NLS-1$
+		if (!isTrue(repositoryConfig.get("core.bare"))) { //$NON-NLS-1$
+			throw new IOException("Not a bare repository: " + repository); //$NON-NLS-1$
+		}
+		// Objects are named after their SHA-1 hash (see ContentHash)
+		String objectFormat = repositoryConfig.get("extensions.objectformat"); //$NON-NLS-1$
+		if (objectFormat != null && !objectFormat.equalsIgnoreCase("sha1")) { //$NON-NLS-1$
+			throw new IOException("Unsupported object format '" + objectFormat + "' (only sha1 is supported): " + repository); //$NON-NLS-1$ //$NON-NLS-2$
+		}
+
+		// Check identities before anything is written
+		String xdgConfigHome = System.getenv("XDG_CONFIG_HOME"); //$NON-NLS-1$
+		if (xdgConfigHome == null || xdgConfigHome.isEmpty()) {
+			xdgConfigHome = new File(System.getProperty("user.home"), ".config").getPath(); //$NON-NLS-1$ //$NON-NLS-2$
+		}
+		readConfig(new File(new File(xdgConfigHome, "git"), "config"), config); //$NON-NLS-1$ //$NON-NLS-2$
+		readConfig(new File(System.getProperty("user.home"), ".gitconfig"), config); //$NON-NLS-1$ //$NON-NLS-2$
+		config.putAll(repositoryConfig);
+		getIdentity("author", config, 0); //$NON-NLS-1$
+		getIdentity("committer", config, 0); //$NON-NLS-1$
+		this.gitDir = repository;
+		this.objectsDir = new File(repository, "objects"); //$NON-NLS-1$
+
+		File[] indexFiles = new File(objectsDir, "pack").listFiles(); //$NON-NLS-1$
+		if (indexFiles != null) {
+			for (File indexFile: indexFiles) {
+				File packFile = new File(indexFile.getParentFile(), indexFile.getName().replaceFirst("\\.idx$", ".pack")); //$NON-NLS-1$ //$NON-NLS-2$
+				if (indexFile.getName().endsWith(".idx") && packFile.isFile()) { //$NON-NLS-1$
+					packs.add(new PackIndex(indexFile, packFile));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Add a file as a blob. Can be called from any worker thread.
+	 *
+	 * @param path path of the file in the repository (using '/')
+	 * @param id content hash of the file (see ContentHash)
+	 * @param bytes
+	 * @param length number of bytes of the file (from the start of the array)
+	 * @return true if the blob has been written, false if the repository already had it
+	 * @throws IOException
+	 */
+	boolean addFile(String path, String id, byte[] bytes, int length) throws IOException {
+		files.put(path, id);
+		return writeObject(id, "blob", bytes, length); //$NON-NLS-1$
+	}
+
+	/**
+	 * @return number of objects written (blobs, trees and commit)
+	 */
+	long getWrittenObjects() {
+		return writtenObjects.get();
+	}
+
+	/**
+	 * Build trees of the files added, and commit them on the current branch
+	 * (files of the model and images folders of the current commit which have not been added are deleted)
+	 *
+	 * @param message
+	 * @return id of the new commit (or of the current one if nothing changed)
+	 * @throws IOException
+	 */
+	String commit(String message) throws IOException {
+		String refName = getHeadRef();
+		String parent = readRef(refName);
+
+		// Replace model and images trees of the current commit
+		List<TreeEntry> root = new ArrayList<TreeEntry>();
+		String parentTree = null;
+		if (parent != null) {
+			parentTree = getTree(readObject(parent, TYPE_COMMIT));
+			for (TreeEntry entry: parseTree(readObject(parentTree, TYPE_TREE))) {
+				if (!entry.name.equals(MyExporter.MODEL_FOLDER) && !entry.name.equals(MyExporter.IMAGES_FOLDER)) {
+					root.add(entry);
+				}
+			}
+		}
+		Node node = new Node();
+		for (Map.Entry<String, String> file: files.entrySet()) {
+			node.add(file.getKey().split("/"), 0, file.getValue()); //$NON-NLS-1$
+		}
+		for (Map.Entry<String, Node> tree: node.trees.entrySet()) {
+			root.add(new TreeEntry(MODE_TREE, tree.getKey(), writeTree(tree.getValue())));
+		}
+		String tree = writeTree(root);
+
+		// Nothing to commit
+		if (tree.equals(parentTree)) {
+			return parent;
+		}
+
+		long now = System.currentTimeMillis();
+		String author = getIdentity("author", config, now); //$NON-NLS-1$
+		String committer = getIdentity("committer", config, now); //$NON-NLS-1$
+		StringBuilder builder = new StringBuilder();
+		builder.append("tree ").append(tree).append('\n'); //$NON-NLS-1$
+		if (parent != null) {
+			builder.append("parent ").append(parent).append('\n'); //$NON-NLS-1$
+		}
+		builder.append("author ").append(author).append('\n'); //$NON-NLS-1$
+		builder.append("committer ").append(committer).append('\n'); //$NON-NLS-1$
+		builder.append('\n').append(message);
+		if (!message.endsWith("\n")) { //$NON-NLS-1$
+			builder.append('\n');
+		}
+		byte[] bytes = builder.toString().getBytes(StandardCharsets.UTF_8);
+		String commit = hash("commit", bytes); //$NON-NLS-1$
+		writeObject(commit, "commit", bytes, bytes.length); //$NON-NLS-1$
+
+		updateRef(refName, parent, commit, committer, message);
+		return commit;
+	}
+
+	/**
+	 * Write an object as a loose object, unless the repository already has it
+	 *
+	 * @return true if the object has been written
+	 */
+	private boolean writeObject(String id, String type, byte[] bytes, int length) throws IOException {
+		File file = getObjectFile(id);
+		if (file.isFile() || findPacked(id) != null) {
+			return false;
+		}
+		file.getParentFile().mkdirs();
+
+		// Write to a temporary file first, so that an interrupted write doesn't leave a truncated object
+		Path tmpFile = Files.createTempFile(objectsDir.toPath(), "tmp_obj_", null); //$NON-NLS-1$
+		try {
+			Deflater threadDeflater = deflater.get();
+			threadDeflater.reset();
+			try (OutputStream out = new DeflaterOutputStream(Files.newOutputStream(tmpFile), threadDeflater, 8192)) {
+				out.write((type + " " + length + "\0").getBytes(StandardCharsets.US_ASCII)); //$NON-NLS-1$ //$NON-NLS-2$
+				out.write(bytes, 0, length);
+			}
+			Files.move(tmpFile, file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(tmpFile);
+		}
+		writtenObjects.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * Read an object (loose or packed)
+	 *
+	 * @param id
+	 * @param type expected type
+	 * @return content of the object
+	 */
+	private byte[] readObject(String id, int type) throws IOException {
+		RawObject object = readObject(id);
+		if (object.type != type) {
+			throw new IOException("Unexpected type of object " + id); //$NON-NLS-1$
+		}
+		return object.bytes;
+	}
+
+	private RawObject readObject(String id) throws IOException {
+		File file = getObjectFile(id);
+		if (file.isFile()) {
+			byte[] bytes;
+			try (InflaterInputStream in = new InflaterInputStream(Files.newInputStream(file.toPath()))) {
+				bytes = readAll(in);
+			}
+			int end = 0;
+			while (end < bytes.length && bytes[end] != 0) {
+				end++;
+			}
+			String header = new String(bytes, 0, end, StandardCharsets.US_ASCII);
+			String type = header.substring(0, header.indexOf(' '));
+			int typeCode = type.equals("commit") ? TYPE_COMMIT : type.equals("tree") ? TYPE_TREE : type.equals("blob") ? TYPE_BLOB : TYPE_TAG; //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+			byte[] content = new byte[bytes.length - end - 1];
+			System.arraycopy(bytes, end + 1, content, 0, content.length);
+			return new RawObject(typeCode, content);
+		}
+
+		PackIndex pack = findPacked(id);
+		if (pack == null) {
+			throw new IOException("Missing object " + id); //$NON-NLS-1$
+		}
+		try (RandomAccessFile in = new RandomAccessFile(pack.packFile, "r")) { //$NON-NLS-1$
+			return readPacked(in, pack.find(id));
+		}
+	}
+
+	/**
+	 * Read an object of a pack, applying deltas (if any)
+	 */
+	private RawObject readPacked(RandomAccessFile in, long offset) throws IOException {
+		in.seek(offset);
+		int c = in.read();
+		int type = (c >> 4) & 7;
+		long size = c & 15;
+		int shift = 4;
+		while ((c & 0x80) != 0) {
+			c = in.read();
+			size |= (long) (c & 0x7f) << shift;
+			shift += 7;
+		}
+
+		switch (type) {
+			case TYPE_COMMIT:
+			case TYPE_TREE:
+			case TYPE_BLOB:
+			case TYPE_TAG:
+				return new RawObject(type, inflate(in, size));
+			case TYPE_OFS_DELTA: {
+				c = in.read();
+				long distance = c & 0x7f;
+				while ((c & 0x80) != 0) {
+					c = in.read();
+					distance = ((distance + 1) << 7) | (c & 0x7f);
+				}
+				byte[] delta = inflate(in, size);
+				RawObject base = readPacked(in, offset - distance);
+				return new RawObject(base.type, applyDelta(base.bytes, delta));
+			}
+			case TYPE_REF_DELTA: {
+				byte[] baseId = new byte[20];
+				in.readFully(baseId);
+				byte[] delta = inflate(in, size);
+				RawObject base = readObject(toHex(baseId, 0));
+				return new RawObject(base.type, applyDelta(base.bytes, delta));
+			}
+			default:
+				throw new IOException("Unknown type of packed object at " + offset); //$NON-NLS-1$
+		}
+	}
+
+	/**
+	 * Inflate data starting at the current position of a pack
+	 */
+	private static byte[] inflate(RandomAccessFile in, long size) throws IOException {
+		if (size > Integer.MAX_VALUE) {
+			throw new IOException("Object too large"); //$NON-NLS-1$
+		}
+		byte[] result = new byte[(int) size];
+		byte[] buffer = new byte[8192];
+		Inflater inflater = new Inflater();
+		try {
+			// Only the object itself is needed: the end of its compressed data doesn't have to be reached
+			int length = 0;
+			while (length < result.length) {
+				if (inflater.needsInput()) {
+					int read = in.read(buffer);
+					if (read < 0) {
+						throw new IOException("Truncated pack"); //$NON-NLS-1$
+					}
+					inflater.setInput(buffer, 0, read);
+				}
+				int inflated = inflater.inflate(result, length, result.length - length);
+				if (inflated == 0 && (inflater.finished() || inflater.needsDictionary())) {
+					throw new IOException("Truncated object in pack"); //$NON-NLS-1$
+				}
+				length += inflated;
+			}
+			return result;
+		} catch (DataFormatException e) {
+			throw new IOException(e);
+		} finally {
+			inflater.end();
+		}
+	}
+
+	/**
+	 * Apply a git delta to its base
+	 */
+	private static byte[] applyDelta(byte[] base, byte[] delta) throws IOException {
+		int[] position = new int[1];
+		readVarInt(delta, position); // Size of the base
+		byte[] result = new byte[(int) readVarInt(delta, position)];
+		int p = position[0];
+		int length = 0;
+		while (p < delta.length) {
+			int op = delta[p++] & 0xff;
+			if ((op & 0x80) != 0) {
+				// Copy from base
+				int copyOffset = 0;
+				int copySize = 0;
+				for (int i = 0; i < 4; i++) {
+					if ((op & (1 << i)) != 0) {
+						copyOffset |= (delta[p++] & 0xff) << (8 * i);
+					}
+				}
+				for (int i = 0; i < 3; i++) {
+					if ((op & (0x10 << i)) != 0) {
+						copySize |= (delta[p++] & 0xff) << (8 * i);
+					}
+				}
+				if (copySize == 0) {
+					copySize = 0x10000;
+				}
+				System.arraycopy(base, copyOffset, result, length, copySize);
+				length += copySize;
+			} else if (op != 0) {
+				// Insert from delta
+				System.arraycopy(delta, p, result, length, op);
+				p += op;
+				length += op;
+			} else {
+				throw new IOException("Invalid delta"); //$NON-NLS-1$
+			}
+		}
+		if (length != result.length) {
+			throw new IOException("Invalid delta"); //$NON-NLS-1$
+		}
+		return result;
+	}
+
+	private static long readVarInt(byte[] bytes, int[] position) {
+		long value = 0;
+		int shift = 0;
+		int c;
+		do {
+			c = bytes[position[0]++] & 0xff;
+			value |= (long) (c & 0x7f) << shift;
+			shift += 7;
+		} while ((c & 0x80) != 0);
+		return value;
+	}
+
+	private PackIndex findPacked(String id) {
+		for (PackIndex pack: packs) {
+			if (pack.find(id) >= 0) {
+				return pack;
+			}
+		}
+		return null;
+	}
+
+	private File getObjectFile(String id) {
+		return new File(new File(objectsDir, id.substring(0, 2)), id.substring(2));
+	}
+
+	/**
+	 * Write the trees of a directory and of all its subdirectories
+	 *
+	 * @return id of the tree of this directory
+	 */
+	private String writeTree(Node node) throws IOException {
+		List<TreeEntry> entries = new ArrayList<TreeEntry>();
+		for (Map.Entry<String, String> blob: node.blobs.entrySet()) {
+			entries.add(new TreeEntry(MODE_FILE, blob.getKey(), blob.getValue()));
+		}
+		for (Map.Entry<String, Node> tree: node.trees.entrySet()) {
+			entries.add(new TreeEntry(MODE_TREE, tree.getKey(), writeTree(tree.getValue())));
+		}
+		return writeTree(entries);
+	}
+
+	/**
+	 * Write a tree (entries are sorted as git does: by name, directories being compared as if their name ended with '/')
+	 *
+	 * @return id of the tree
+	 */
+	private String writeTree(List<TreeEntry> entries) throws IOException {
+		Collections.sort(entries, new Comparator<TreeEntry>() {
+			@Override
+			public int compare(TreeEntry e1, TreeEntry e2) {
+				byte[] n1 = e1.getSortName();
+				byte[] n2 = e2.getSortName();
+				for (int i = 0; i < Math.min(n1.length, n2.length); i++) {
+					int result = Integer.compare(n1[i] & 0xff, n2[i] & 0xff);
+					if (result != 0) {
+						return result;
+					}
+				}
+				return Integer.compare(n1.length, n2.length);
+			}
+		});
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for (TreeEntry entry: entries) {
+			out.write((entry.mode + " " + entry.name).getBytes(StandardCharsets.UTF_8)); //$NON-NLS-1$
+			out.write(0);
+			out.write(toBytes(entry.id));
+		}
+		byte[] bytes = out.toByteArray();
+		String id = hash("tree", bytes); //$NON-NLS-1$
+		writeObject(id, "tree", bytes, bytes.length); //$NON-NLS-1$
+		return id;
+	}
+
+	private static List<TreeEntry> parseTree(byte[] bytes) {
+		List<TreeEntry> entries = new ArrayList<TreeEntry>();
+		int p = 0;
+		while (p < bytes.length) {
+			int space = p;
+			while (bytes[space] != ' ') {
+				space++;
+			}
+			int end = space;
+			while (bytes[end] != 0) {
+				end++;
+			}
+			entries.add(new TreeEntry(new String(bytes, p, space - p, StandardCharsets.US_ASCII),
+					new String(bytes, space + 1, end - space - 1, StandardCharsets.UTF_8), toHex(bytes, end + 1)));
+			p = end + 21;
+		}
+		return entries;
+	}
+
+	/**
+	 * @return id of the tree of a commit
+	 */
+	private static String getTree(byte[] commit) throws IOException {
+		String text = new String(commit, StandardCharsets.UTF_8);
+		if (!text.startsWith("tree ")) { //$NON-NLS-1$
+			throw new IOException("Invalid commit"); //$NON-NLS-1$
+		}
+		return text.substring(5, 45);
+	}
+
+	/**
+	 * Resolve the author or the committer of new commits, as git does: GIT_AUTHOR_* or GIT_COMMITTER_*
+	 * environment variables first, then author.* or committer.* and finally user.* configuration
+	 *
+	 * @param role "author" or "committer"
+	 * @param config git configuration
+	 * @param now time of the commit
+	 * @return identity with its timestamp
+	 * @throws IOException if no email is configured (the commit would have an invalid identity)
+	 */
+	private static String getIdentity(String role, Map<String, String> config, long now) throws IOException {
+		String name = getIdentityValue(role, "name", config); //$NON-NLS-1$
+		if (name == null) {
+			name = System.getProperty("user.name"); //$NON-NLS-1$
+		}
+		String email = getIdentityValue(role, "email", config); //$NON-NLS-1$
+		if (email == null || email.isEmpty()) {
+			throw new IOException("No email configured for the " + role + " of commits: set GIT_" + role.toUpperCase() //$NON-NLS-1$ //$NON-NLS-2$
+					+ "_EMAIL or user.email (e.g. git config --global user.email you@example.com)"); //$NON-NLS-1$
+		}
+
+		int minutes = TimeZone.getDefault().getOffset(now) / 60000;
+		return String.format("%s <%s> %d %s%02d%02d", name, email, now / 1000, minutes < 0 ? "-" : "+", //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+				Math.abs(minutes) / 60, Math.abs(minutes) % 60);
+	}
+
+	private static String getIdentityValue(String role, String key, Map<String, String> config) {
+		String value = System.getenv("GIT_" + role.toUpperCase() + "_" + key.toUpperCase()); //$NON-NLS-1$ //$NON-NLS-2$
+		if (value == null) {
+			value = config.get(role + "." + key); //$NON-NLS-1$
+		}
+		if (value == null) {
+			value = config.get("user." + key); //$NON-NLS-1$
+		}
+		return value;
+	}
+
+	/**
+	 * Read the simple sections of a git configuration file as "section.key" values (later files override
+	 * earlier ones). Subsections, includes and quoted values are not needed here and not supported.
+	 */
+	private static void readConfig(File file, Map<String, String> config) throws IOException {
+		if (!file.isFile()) {
+			return;
+		}
+		String section = null;
+		for (String line: Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+			line = line.trim();
+			if (line.startsWith("[")) { //$NON-NLS-1$
+				section = line.matches("\\[[A-Za-z0-9.-]+\\]") ? line.substring(1, line.length() - 1).toLowerCase() : null; //$NON-NLS-1$
+			} else if (section != null && !line.isEmpty() && !line.startsWith("#") && !line.startsWith(";")) { //$NON-NLS-1$ //$NON-NLS-2$
+				int index = line.indexOf('=');
+				// A key without value is a true boolean
+				String key = (index < 0 ? line : line.substring(0, index)).trim().toLowerCase();
+				config.put(section + "." + key, index < 0 ? "true" : line.substring(index + 1).trim()); //$NON-NLS-1$ //$NON-NLS-2$
+			}
+		}
+	}
+
+	/**
+	 * @return true if a git boolean value is true
+	 */
+	private static boolean isTrue(String value) {
+		return value != null && (value.equalsIgnoreCase("true") || value.equalsIgnoreCase("yes") //$NON-NLS-1$ //$NON-NLS-2$
+				|| value.equalsIgnoreCase("on") || value.equals("1")); //$NON-NLS-1$ //$NON-NLS-2$
+	}
+
+	/**
+	 * @return name of the ref HEAD points to ("HEAD" itself if detached)
+	 */
+	private String getHeadRef() throws IOException {
+		String head = new String(Files.readAllBytes(new File(gitDir, "HEAD").toPath()), StandardCharsets.UTF_8).trim(); //$NON-NLS-1$
+		return head.startsWith("ref: ") ? head.substring(5).trim() : "HEAD"; //$NON-NLS-1$ //$NON-NLS-2$
+	}
+
+	/**
+	 * @return id a ref points to (loose or packed), or null if it doesn't exist yet
+	 */
+	private String readRef(String refName) throws IOException {
+		File file = new File(gitDir, refName);
+		if (file.isFile()) {
+			String value = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8).trim();
+			return value.startsWith("ref: ") ? readRef(value.substring(5).trim()) : value; //$NON-NLS-1$
+		}
+		File packedRefs = new File(gitDir, "packed-refs"); //$NON-NLS-1$
+		if (packedRefs.isFile()) {
+			for (String line: Files.readAllLines(packedRefs.toPath(), StandardCharsets.UTF_8)) {
+				if (!line.startsWith("#") && !line.startsWith("^") && line.endsWith(" " + refName)) { //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+					return line.substring(0, 40);
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Move a ref to a new commit through its lock file (as git does), failing if it has been moved meanwhile
+	 */
+	private void updateRef(String refName, String oldId, String newId, String identity, String message) throws IOException {
+		File file = new File(gitDir, refName);
+		File lockFile = new File(gitDir, refName + ".lock"); //$NON-NLS-1$
+		lockFile.getParentFile().mkdirs();
+		Files.write(lockFile.toPath(), (newId + "\n").getBytes(StandardCharsets.US_ASCII), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE); //$NON-NLS-1$
+		try {
+			String currentId = readRef(refName);
+			if (currentId == null ? oldId != null : !currentId.equals(oldId)) {
+				throw new IOException(refName + " has been updated meanwhile"); //$NON-NLS-1$
+			}
+			Files.move(lockFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(lockFile.toPath());
+		}
+
+		// Update reflogs, if they are kept for this repository
+		String subject = message.split("\n", 2)[0]; //$NON-NLS-1$
+		String line = (oldId == null ? "0000000000000000000000000000000000000000" : oldId) + " " + newId + " " + identity //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+				+ "\t" + (oldId == null ? "commit (initial): " : "commit: ") + subject + "\n"; //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+		for (String log: new String[] { refName, "HEAD" }) { //$NON-NLS-1$
+			File logFile = new File(new File(gitDir, "logs"), log); //$NON-NLS-1$
+			if (logFile.isFile()) {
+				Files.write(logFile.toPath(), line.getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+			}
+			if (refName.equals("HEAD")) { //$NON-NLS-1$
+				break;
+			}
+		}
+	}
+
+	/**
+	 * @return id of an object (SHA-1 of its header and content)
+	 */
+	private static String hash(String type, byte[] bytes) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-1"); //$NON-NLS-1$
+			digest.update((type + " " + bytes.length + "\0").getBytes(StandardCharsets.US_ASCII)); //$NON-NLS-1$ //$NON-NLS-2$
+			digest.update(bytes);
+			return toHex(digest.digest(), 0);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static String toHex(byte[] bytes, int offset) {
+		StringBuilder builder = new StringBuilder(40);
+		for (int i = offset; i < offset + 20; i++) {
+			builder.append(Character.forDigit((bytes[i] >> 4) & 15, 16)).append(Character.forDigit(bytes[i] & 15, 16));
+		}
+		return builder.toString();
+	}
+
+	private static byte[] toBytes(String id) {
+		byte[] bytes = new byte[20];
+		for (int i = 0; i < 20; i++) {
+			bytes[i] = (byte) Integer.parseInt(id.substring(2 * i, 2 * i + 2), 16);
+		}
+		return bytes;
+	}
+
+	private static byte[] readAll(InflaterInputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		int read;
+		while ((read = in.read(buffer)) != -1) {
+			out.write(buffer, 0, read);
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * Directory of the files added
+	 */
+	private static class Node {
+		Map<String, String> blobs = new HashMap<String, String>();
+		Map<String, Node> trees = new HashMap<String, Node>();
+
+		void add(String[] path, int index, String id) {
+			if (index == path.length - 1) {
+				blobs.put(path[index], id);
+				return;
+			}
+			Node node = trees.get(path[index]);
+			if (node == null) {
+				node = new Node();
+				trees.put(path[index], node);
+			}
+			node.add(path, index + 1, id);
+		}
+	}
+
+	/**
+	 * Entry of a tree
+	 */
+	private static class TreeEntry {
+		final String mode;
+		final String name;
+		final String id;
+
+		TreeEntry(String mode, String name, String id) {
+			this.mode = mode;
+			this.name = name;
+			this.id = id;
+		}
+
+		byte[] getSortName() {
+			return (mode.equals(MODE_TREE) ? name + "/" : name).getBytes(StandardCharsets.UTF_8); //$NON-NLS-1$
+		}
+	}
+
+	/**
+	 * Type and content of an object
+	 */
+	private static class RawObject {
+		final int type;
+		final byte[] bytes;
+
+		RawObject(int type, byte[] bytes) {
+			this.type = type;
+			this.bytes = bytes;
+		}
+	}
+
+	/**
+	 * Index (version 2) of a pack: sorted ids of its objects and their offsets in the pack
+	 */
+	private static class PackIndex {
+		final File packFile;
+		final byte[] bytes;
+		final int count;
+
+		PackIndex(File indexFile, File packFile) throws IOException {
+			this.packFile = packFile;
+			this.bytes = Files.readAllBytes(indexFile.toPath());
+			if (bytes.length < 8 + 1024 || getInt(0) != 0xff744f63 || getInt(4) != 2) {
+				throw new IOException("Unsupported pack index: " + indexFile); //$NON-NLS-1$
+			}
+			this.count = getInt(8 + 255 * 4);
+		}
+
+		/**
+		 * @return offset of an object in the pack, or -1 if the pack doesn't contain it
+		 */
+		long find(String id) {
+			byte[] key = toBytes(id);
+			int first = key[0] & 0xff;
+			int low = first == 0 ? 0 : getInt(8 + (first - 1) * 4);
+			int high = getInt(8 + first * 4) - 1;
+			while (low <= high) {
+				int middle = (low + high) >>> 1;
+				int result = compare(key, 8 + 1024 + middle * 20);
+				if (result == 0) {
+					return getOffset(middle);
+				} else if (result > 0) {
+					low = middle + 1;
+				} else {
+					high = middle - 1;
+				}
+			}
+			return -1;
+		}
+
+		private long getOffset(int index) {
+			int offset = getInt(8 + 1024 + count * 24 + index * 4);
+			if ((offset & 0x80000000) == 0) {
+				return offset;
+			}
+			// Large offsets are stored in a separate table
+			int position = 8 + 1024 + count * 28 + (offset & 0x7fffffff) * 8;
+			return ((long) getInt(position) << 32) | (getInt(position + 4) & 0xffffffffL);
+		}
+
+		private int compare(byte[] key, int position) {
+			for (int i = 0; i < 20; i++) {
+				int result = Integer.compare(key[i] & 0xff, bytes[position + i] & 0xff);
+				if (result != 0) {
+					return result;
+				}
+			}
+			return 0;
+		}
+
+		private int getInt(int position) {
+			return ((bytes[position] & 0xff) << 24) | ((bytes[position + 1] & 0xff) << 16)
+					| ((bytes[position + 2] & 0xff) << 8) | (bytes[position + 3] & 0xff);
+		}
+	}
+}
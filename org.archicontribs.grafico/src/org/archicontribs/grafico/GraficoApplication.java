@@ -0,0 +1,395 @@
+/**
+ * This program and the accompanying materials
+ * are made available under the terms of the License
+ * which accompanies this distribution in the file LICENSE.txt
+ */
+package org.archicontribs.grafico;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+
+import org.eclipse.core.runtime.IStatus;
+import org.eclipse.equinox.app.IApplication;
+import org.eclipse.equinox.app.IApplicationContext;
+
+import com.archimatetool.editor.model.IArchiveManager;
+import com.archimatetool.editor.model.IEditorModelManager;
+import com.archimatetool.model.IArchimateModel;
+
+
+/**
+ * Headless GRAFICO application, used to convert models without Archi's user interface
+ * (e.g. on a server or in a CI job).
+ *
+ * Usage:
+ *   Archi -application org.archicontribs.grafico.application -nosplash -consoleLog
+ *         [-models n] [-metrics file.json] (-export model.archimate folder | -import folder model.archimate | -validate folder [report.json]
+ *         | -diff folder1 folder2 [changes.json] | -merge base ours theirs [changes.json] | -git model.archimate repository [message])...
+ *   Archi -application org.archicontribs.grafico.application -nosplash -consoleLog
+ *         -benchmark [sizes] [-iterations n] [-images n] [-workdir folder] [-maxheap ratio]
+ *
+ * Several models can be converted in the same run, "-models" sets how many of them are
+ * converted concurrently (default 1). Throughput is reported for each model.
+ * "-metrics" writes detailed metrics of each conversion (see GraficoMetrics) to a JSON file.
+ *
+ * "-validate" checks referential integrity of a GRAFICO folder without importing it (see GraficoValidator),
+ * prints problems found and optionally writes them to a JSON file. Exit code is 1 if problems are found,
+ * so that it can be used in a git pre-commit hook.
+ *
+ * "-diff" prints changes made in folder2 since folder1, "-merge" applies changes made in theirs since base
+ * to ours, except conflicting ones (see GraficoDiff). The change set can also be written to a JSON file.
+ * Exit code of "-merge" is 1 if conflicts are found.
+ *
+ * "-git" exports a model straight into a bare git repository and commits it on its current branch
+ * (see MyExporter.exportModelToGit()), without any working tree.
+ *
+ * "-benchmark" exports and imports generated models of the given (comma separated) sizes,
+ * see GraficoBenchmark. Exit code is 1 if a check fails, e.g. if the peak heap of an import is
+ * more than "-maxheap" times the heap retained by the imported model.
+ */
+public class GraficoApplication implements IApplication {
+
+	static final Integer EXIT_ERROR = Integer.valueOf(1);
+
+	// IEditorModelManager is not thread safe
+	private static final Object MODEL_MANAGER_LOCK = new Object();
+
+	@Override
+	public Object start(IApplicationContext context) throws Exception {
+		String[] args = (String[]) context.getArguments().get(IApplicationContext.APPLICATION_ARGS);
+		List<Job> jobs = new ArrayList<Job>();
+		int models = 1;
+		File metricsFile = null;
+		GraficoBenchmark benchmark = null;
+
+		for (int i = 0; args != null && i < args.length; i++) {
+			if ("-models".equals(args[i]) && i + 1 < args.length) { //$NON-NLS-1$
+				models = Integer.parseInt(args[++i]);
+			} else if ("-metrics".equals(args[i]) && i + 1 < args.length) { //$NON-NLS-1$
+				metricsFile = new File(args[++i]);
+			} else if ("-export".equals(args[i]) && i + 2 < args.length) { //$NON-NLS-1$
+				jobs.add(new ExportJob(new File(args[++i]), new File(args[++i]), null));
+			} else if ("-import".equals(args[i]) && i + 2 < args.length) { //$NON-NLS-1$
+				jobs.add(new ImportJob(new File(args[++i]), new File(args[++i])));
+			} else if ("-validate".equals(args[i]) && i + 1 < args.length) { //$NON-NLS-1$
+				File folder = new File(args[++i]);
+				jobs.add(new ValidateJob(folder, getOptionalFile(args, i) ? new File(args[++i]) : null));
+			} else if ("-diff".equals(args[i]) && i + 2 < args.length) { //$NON-NLS-1$
+				File oldFolder = new File(args[++i]);
+				File newFolder = new File(args[++i]);
+				jobs.add(new DiffJob(null, oldFolder, newFolder, getOptionalFile(args, i) ? new File(args[++i]) : null));
+			} else if ("-merge".equals(args[i]) && i + 3 < args.length) { //$NON-NLS-1$
+				File baseFolder = new File(args[++i]);
+				File oursFolder = new File(args[++i]);
+				File theirsFolder = new File(args[++i]);
+				jobs.add(new DiffJob(baseFolder, oursFolder, theirsFolder, getOptionalFile(args, i) ? new File(args[++i]) : null));
+			} else if ("-git".equals(args[i]) && i + 2 < args.length) { //$NON-NLS-1$
+				File modelFile = new File(args[++i]);
+				File repository = new File(args[++i]);
+				jobs.add(new ExportJob(modelFile, repository, getOptionalFile(args, i) ? args[++i] : "Export of " + modelFile.getName())); //$NON-NLS-1$
+			} else if ("-benchmark".equals(args[i])) { //$NON-NLS-1$
+				benchmark = new GraficoBenchmark(new File(System.getProperty("java.io.tmpdir"), "grafico-benchmark")); //$NON-NLS-1$ //$NON-NLS-2$
+				if (i + 1 < args.length && !args[i + 1].startsWith("-")) { //$NON-NLS-1$
+					String[] sizes = args[++i].split(","); //$NON-NLS-1$
+					benchmark.sizes = new int[sizes.length];
+					for (int j = 0; j < sizes.length; j++) {
+						benchmark.sizes[j] = Integer.parseInt(sizes[j].trim());
+					}
+				}
+			} else if ("-iterations".equals(args[i]) && benchmark != null && i + 1 < args.length) { //$NON-NLS-1$
+				benchmark.iterations = Integer.parseInt(args[++i]);
+			} else if ("-images".equals(args[i]) && benchmark != null && i + 1 < args.length) { //$NON-NLS-1$
+				benchmark.images = Integer.parseInt(args[++i]);
+			} else if ("-workdir".equals(args[i]) && benchmark != null && i + 1 < args.length) { //$NON-NLS-1$
+				benchmark.workFolder = new File(args[++i]);
+			} else if ("-maxheap".equals(args[i]) && benchmark != null && i + 1 < args.length) { //$NON-NLS-1$
+				benchmark.maxHeapRatio = Double.parseDouble(args[++i]);
+			}
+		}
+
+		if (jobs.isEmpty() && benchmark == null) {
+			System.err.println("Usage: [-models n] [-metrics file.json] (-export model.archimate folder | -import folder model.archimate | -validate folder [report.json]"); //$NON-NLS-1$
+			System.err.println("       | -diff folder1 folder2 [changes.json] | -merge base ours theirs [changes.json] | -git model.archimate repository [message])..."); //$NON-NLS-1$
+			System.err.println("       -benchmark [sizes] [-iterations n] [-images n] [-workdir folder] [-maxheap ratio]"); //$NON-NLS-1$
+			return EXIT_ERROR;
+		}
+
+		context.applicationRunning();
+
+		if (benchmark != null) {
+			return benchmark.run(System.out) ? EXIT_OK : EXIT_ERROR;
+		}
+
+		// Convert models (possibly concurrently)
+		boolean success = true;
+		WorkerPool workerPool = new WorkerPool(models);
+		try {
+			List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+			for (Job job: jobs) {
+				results.add(workerPool.submit(job));
+			}
+			for (Future<Boolean> result: results) {
+				success &= WorkerPool.get(result).booleanValue();
+			}
+		} finally {
+			workerPool.shutdown();
+		}
+
+		if (metricsFile != null) {
+			writeMetrics(jobs, metricsFile);
+		}
+
+		return success ? EXIT_OK : EXIT_ERROR;
+	}
+
+	@Override
+	public void stop() {
+	}
+
+	/**
+	 * @return true if the argument following index i is an (optional) file name
+	 */
+	private static boolean getOptionalFile(String[] args, int i) {
+		return i + 1 < args.length && !args[i + 1].startsWith("-"); //$NON-NLS-1$
+	}
+
+	/**
+	 * Write metrics of all conversions to a file, as a JSON array
+	 */
+	private static void writeMetrics(List<Job> jobs, File file) throws IOException {
+		StringBuilder sb = new StringBuilder("["); //$NON-NLS-1$
+		String separator = "\n"; //$NON-NLS-1$
+		for (Job job: jobs) {
+			sb.append(separator).append("{\"action\": ").append(GraficoMetrics.quote(job.action)) //$NON-NLS-1$
+				.append(", \"source\": ").append(GraficoMetrics.quote(job.source.getPath())) //$NON-NLS-1$
+				.append(", \"target\": ").append(GraficoMetrics.quote(job.target.getPath())) //$NON-NLS-1$
+				.append(", \"metrics\": ").append(job.metrics.toJson().trim()).append("}"); //$NON-NLS-1$ //$NON-NLS-2$
+			separator = ",\n"; //$NON-NLS-1$
+		}
+		sb.append("\n]\n"); //$NON-NLS-1$
+		Files.write(file.toPath(), sb.toString().getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Print throughput of a conversion
+	 */
+	static void report(String action, File source, File target, long files, long bytes, long nanos) {
+		double seconds = Math.max(nanos, 1) / 1e9;
+		double megabytes = bytes / (1024.0 * 1024.0);
+		System.out.println(String.format(Locale.ROOT, "%s %s -> %s: %d files, %.1f MB in %.2f s (%.0f files/s, %.1f MB/s)", //$NON-NLS-1$
+				action, source, target, files, megabytes, seconds, files / seconds, megabytes / seconds));
+	}
+
+	/**
+	 * Print errors of a conversion
+	 */
+	static void report(IStatus errors) {
+		if (errors != null) {
+			for (IStatus error: errors.getChildren()) {
+				System.err.println(error.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Conversion of a model, with the metrics it recorded
+	 */
+	private static abstract class Job implements Callable<Boolean> {
+		String action;
+		File source;
+		File target;
+		GraficoMetrics metrics = new GraficoMetrics();
+
+		Job(String action, File source, File target) {
+			this.action = action;
+			this.source = source;
+			this.target = target;
+		}
+	}
+
+	/**
+	 * Export a .archimate file to a GRAFICO folder (or commit it into a bare git repository)
+	 */
+	private static class ExportJob extends Job {
+		private File modelFile;
+		private File folder;
+		// Commit message (null unless exporting to a git repository)
+		private String message;
+
+		ExportJob(File modelFile, File folder, String message) {
+			super(message == null ? "export" : "git", modelFile, folder); //$NON-NLS-1$ //$NON-NLS-2$
+			this.modelFile = modelFile;
+			this.folder = folder;
+			this.message = message;
+		}
+
+		@Override
+		public Boolean call() {
+			IArchimateModel model = null;
+			try {
+				synchronized (MODEL_MANAGER_LOCK) {
+					model = IEditorModelManager.INSTANCE.loadModel(modelFile);
+				}
+				if (model == null) {
+					throw new IOException("Unable to load " + modelFile); //$NON-NLS-1$
+				}
+
+				MyExporter exporter = new MyExporter();
+				long start = System.nanoTime();
+				if (message == null) {
+					exporter.exportModel(model, folder, metrics);
+				} else {
+					String commit = exporter.exportModelToGit(model, folder, message, metrics);
+					if (commit != null) {
+						System.out.println("Committed " + commit + " in " + folder); //$NON-NLS-1$ //$NON-NLS-2$
+					}
+				}
+				report("Exported", modelFile, folder, exporter.getFileCount(), exporter.getByteCount(), System.nanoTime() - start); //$NON-NLS-1$
+				report(exporter.getErrors());
+				return exporter.getErrors() == null;
+			} catch (Exception e) {
+				System.err.println("Export of " + modelFile + " failed: " + e); //$NON-NLS-1$ //$NON-NLS-2$
+				return Boolean.FALSE;
+			} finally {
+				// The model manager is shared by all jobs: never leave a model registered in it
+				if (model != null) {
+					synchronized (MODEL_MANAGER_LOCK) {
+						try {
+							IEditorModelManager.INSTANCE.closeModel(model);
+						} catch (IOException e) {
+							System.err.println("Unable to close " + modelFile + ": " + e); //$NON-NLS-1$ //$NON-NLS-2$
+						}
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Check a GRAFICO folder (and write the report to a JSON file, if any)
+	 */
+	private static class ValidateJob extends Job {
+		private File folder;
+		private File reportFile;
+
+		ValidateJob(File folder, File reportFile) {
+			super("validate", folder, reportFile == null ? folder : reportFile); //$NON-NLS-1$
+			this.folder = folder;
+			this.reportFile = reportFile;
+		}
+
+		@Override
+		public Boolean call() {
+			try {
+				long start = metrics.start();
+				GraficoValidator.Report report = new GraficoValidator(folder).validate();
+				metrics.endPhase("validate", start); //$NON-NLS-1$
+				metrics.count("files", report.files); //$NON-NLS-1$
+				metrics.count("problems", report.size()); //$NON-NLS-1$
+
+				System.out.print("Validated " + folder + ": " + report); //$NON-NLS-1$ //$NON-NLS-2$
+				if (reportFile != null) {
+					Files.write(reportFile.toPath(), report.toJson().getBytes(StandardCharsets.UTF_8));
+				}
+				return report.isEmpty();
+			} catch (Exception e) {
+				System.err.println("Validation of " + folder + " failed: " + e); //$NON-NLS-1$ //$NON-NLS-2$
+				return Boolean.FALSE;
+			}
+		}
+	}
+
+	/**
+	 * Compare two GRAFICO folders, or merge a folder into another one
+	 * (and write the change set to a JSON file, if any)
+	 */
+	private static class DiffJob extends Job {
+		private File baseFolder;
+		private File oursFolder;
+		private File theirsFolder;
+		private File changesFile;
+
+		DiffJob(File baseFolder, File oursFolder, File theirsFolder, File changesFile) {
+			super(baseFolder == null ? "diff" : "merge", theirsFolder, oursFolder); //$NON-NLS-1$ //$NON-NLS-2$
+			this.baseFolder = baseFolder;
+			this.oursFolder = oursFolder;
+			this.theirsFolder = theirsFolder;
+			this.changesFile = changesFile;
+		}
+
+		@Override
+		public Boolean call() {
+			try {
+				long start = metrics.start();
+				GraficoDiff.ChangeSet changeSet;
+				if (baseFolder == null) {
+					changeSet = new GraficoDiff().diff(oursFolder, theirsFolder);
+					System.out.print("Compared " + oursFolder + " with " + theirsFolder + ": " + changeSet); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+				} else {
+					changeSet = new GraficoDiff().merge(baseFolder, oursFolder, theirsFolder, true);
+					System.out.print("Merged " + theirsFolder + " into " + oursFolder + ": " + changeSet); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+				}
+				metrics.endPhase(action, start);
+				metrics.count("files", changeSet.files); //$NON-NLS-1$
+				metrics.count("changes", changeSet.changes.size()); //$NON-NLS-1$
+				metrics.count("conflicts", changeSet.conflicts.size()); //$NON-NLS-1$
+
+				if (changesFile != null) {
+					Files.write(changesFile.toPath(), changeSet.toJson().getBytes(StandardCharsets.UTF_8));
+				}
+				return !changeSet.hasConflicts();
+			} catch (Exception e) {
+				System.err.println(action + " of " + theirsFolder + " failed: " + e); //$NON-NLS-1$ //$NON-NLS-2$
+				return Boolean.FALSE;
+			}
+		}
+	}
+
+	/**
+	 * Import a GRAFICO folder and save it to a .archimate file
+	 */
+	private static class ImportJob extends Job {
+		private File folder;
+		private File modelFile;
+
+		ImportJob(File folder, File modelFile) {
+			super("import", folder, modelFile); //$NON-NLS-1$
+			this.folder = folder;
+			this.modelFile = modelFile;
+		}
+
+		@Override
+		public Boolean call() {
+			try {
+				MyImporter importer = new MyImporter();
+				long start = System.nanoTime();
+				IArchimateModel model = importer.importModel(folder, metrics);
+				if (model == null) {
+					throw new IOException("No GRAFICO model in " + folder); //$NON-NLS-1$
+				}
+				report("Imported", folder, modelFile, importer.getFileCount(), importer.getByteCount(), System.nanoTime() - start); //$NON-NLS-1$
+				report(importer.getErrors());
+
+				// Save the model (and its images)
+				IArchiveManager archiveManager = (IArchiveManager) model.getAdapter(IArchiveManager.class);
+				if (archiveManager == null) {
+					archiveManager = IArchiveManager.FACTORY.createArchiveManager(model);
+					model.setAdapter(IArchiveManager.class, archiveManager);
+				}
+				model.setFile(modelFile);
+				archiveManager.saveModel();
+				return importer.getErrors() == null;
+			} catch (Exception e) {
+				System.err.println("Import of " + folder + " failed: " + e); //$NON-NLS-1$ //$NON-NLS-2$
+				return Boolean.FALSE;
+			}
+		}
+	}
+}
@@ -0,0 +1,436 @@
+/**
+ * This program and the accompanying materials
+ * are made available under the terms of the License
+ * which accompanies this distribution in the file LICENSE.txt
+ */
+package org.archicontribs.grafico;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.reflect.Method;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.eclipse.emf.ecore.EObject;
+import org.eclipse.emf.ecore.util.EcoreUtil;
+
+import com.archimatetool.editor.utils.FileUtils;
+import com.archimatetool.model.IArchimateModel;
+import com.archimatetool.model.IIdentifier;
+
+
+/**
+ * Benchmark of GRAFICO export and import on generated models of increasing size.
+ *
+ * For each size, a model is generated (see ModelGenerator), then exported and imported
+ * several times. Time per operation, throughput and time spent in each phase are averaged
+ * over measured iterations (after warmup). Allocated bytes are measured on an extra
+ * sequential run, so that all allocations happen on the measuring thread. Peak heap used
+ * by an import is compared with the heap retained by the imported model: the run fails if
+ * it is more than maxHeapRatio times larger.
+ *
+ * Some phases are also measured in isolation, sequentially: snapshot and serialization of each
+ * object without writing files (createAndSaveResource), writing of images (saveImages), parsing
+ * of each file (loadElement) and resolution of references between loaded objects (resolveProxies).
+ *
+ * Files produced by the reusable writer are also checked against those produced by the
+ * legacy writer (one new Resource per file): they must be identical. In the same way, models
+ * loaded by the reusable reader must be equal to those loaded by the legacy reader.
+ *
+ * Settings such as the number of threads or the writer to use are set on each exporter and
+ * importer (see GraficoSettings): preferences are never changed.
+ */
+class GraficoBenchmark {
+
+	int[] sizes = { 1000, 10000, 100000, 500000 };
+	int warmups = 1;
+	int iterations = 3;
+	int images = 10;
+	File workFolder;
+
+	// Limit of peak import heap / model heap
+	double maxHeapRatio = 2.0;
+
+	// Below this size, the heap retained by a model is too small to be measured reliably
+	private static final double MIN_MODEL_MB = 1.0;
+
+	private boolean failed;
+
+	GraficoBenchmark(File workFolder) {
+		this.workFolder = workFolder;
+	}
+
+	/**
+	 * @param out
+	 * @return false if a check failed (files or models differ from legacy ones, or import heap is above the limit)
+	 * @throws IOException
+	 */
+	boolean run(PrintStream out) throws IOException {
+		failed = false;
+		out.println("elements\toperation\tms/op\tfiles/s\tMB/s\talloc MB/op\tphases (ms)"); //$NON-NLS-1$
+
+		for (int size: sizes) {
+			ModelGenerator generator = new ModelGenerator(size);
+			generator.images = images;
+			IArchimateModel model = generator.generate();
+			File folder = new File(workFolder, "model-" + size); //$NON-NLS-1$
+
+			out.println(measureExport(model, folder).format(size, "export")); //$NON-NLS-1$
+			out.println(size + "\tui block\t" + measureSnapshot(model, folder)); //$NON-NLS-1$
+			out.println(size + "\tphases\t" + measurePhases(model, folder)); //$NON-NLS-1$
+			out.println(size + "\tverify\t" + verifyWriters(model, folder)); //$NON-NLS-1$
+			out.println(measureImport(folder, false).format(size, "import")); //$NON-NLS-1$
+			out.println(size + "\tverify\t" + verifyReaders(folder)); //$NON-NLS-1$
+			out.println(size + "\theap\t" + measureImportHeap(folder)); //$NON-NLS-1$
+			out.println(measureCachedImport(folder).format(size, "import (cache)")); //$NON-NLS-1$
+		}
+		return !failed;
+	}
+
+	private Result measureExport(IArchimateModel model, File folder) throws IOException {
+		Result result = new Result();
+		for (int i = 0; i < warmups + iterations; i++) {
+			MyExporter exporter = new MyExporter();
+			long start = System.nanoTime();
+			exporter.exportModel(model, folder, new GraficoMetrics());
+			if (i >= warmups) {
+				result.add(System.nanoTime() - start, exporter.getFileCount(), exporter.getByteCount(), exporter.getMetrics().getPhaseTimes());
+			}
+		}
+
+		// Allocation (sequential run, without metrics)
+		MyExporter exporter = new MyExporter();
+		exporter.settings.set(MyExporter.PREF_EXPORT_THREADS, 1);
+		long allocated = allocatedBytes();
+		exporter.exportModel(model, folder, GraficoMetrics.DISABLED);
+		result.allocatedBytes = allocatedBytes() - allocated;
+
+		return result;
+	}
+
+	/**
+	 * Measure the time during which an export from Archi blocks the UI thread (snapshot of each object
+	 * and of the images, before files are written in background), and the heap retained by this snapshot
+	 * until the export job has saved it
+	 *
+	 * @return a description of the result
+	 */
+	private String measureSnapshot(IArchimateModel model, File folder) {
+		long total = 0;
+		for (int i = 0; i < warmups + iterations; i++) {
+			long start = System.nanoTime();
+			new MyExporter().takeSnapshot(model, folder);
+			MyExporter.collectImages(model);
+			if (i >= warmups) {
+				total += System.nanoTime() - start;
+			}
+		}
+
+		long baseline = usedHeap();
+		MyExporter.ModelSnapshot snapshot = new MyExporter().takeSnapshot(model, folder);
+		Map<String, byte[]> images = MyExporter.collectImages(model);
+		double snapshotMB = (usedHeap() - baseline) / (1024.0 * 1024.0);
+		return String.format(Locale.ROOT, "%.1f ms\tsnapshot %.1f MB\t(%d files)", //$NON-NLS-1$
+				total / 1e6 / iterations, snapshotMB, snapshot.objects.size() + images.size());
+	}
+
+	/**
+	 * Measure some phases of export and import in isolation, sequentially (files have already been exported to folder)
+	 *
+	 * @return average time of each phase
+	 */
+	private String measurePhases(IArchimateModel model, File folder) throws IOException {
+		List<File> files = new ArrayList<File>();
+		listFiles(new File(folder, MyExporter.MODEL_FOLDER), files);
+		Map<String, byte[]> modelImages = MyExporter.collectImages(model);
+		File imagesFolder = new File(folder.getPath() + "-images"); //$NON-NLS-1$
+		Map<String, Long> phaseTimes = new LinkedHashMap<String, Long>();
+
+		for (int i = 0; i < warmups + iterations; i++) {
+			// Snapshot and serialization of each object, without writing files
+			long start = System.nanoTime();
+			MyExporter exporter = new MyExporter();
+			MyExporter.ModelSnapshot snapshot = exporter.takeSnapshot(model, folder);
+			GraficoWriter writer = new GraficoWriter();
+			for (Map.Entry<File, EObject> entry: snapshot.objects.entrySet()) {
+				writer.serialize(entry.getValue(), entry.getKey());
+			}
+			addPhaseTime(phaseTimes, "createAndSaveResource", i, start); //$NON-NLS-1$
+
+			// Writing of images into an empty folder
+			FileUtils.deleteFolder(imagesFolder);
+			exporter = new MyExporter();
+			exporter.settings.set(MyExporter.PREF_EXPORT_THREADS, 1);
+			start = System.nanoTime();
+			exporter.exportImages(modelImages, imagesFolder);
+			addPhaseTime(phaseTimes, "saveImages", i, start); //$NON-NLS-1$
+
+			// Parsing of each file
+			List<EObject> objects = new ArrayList<EObject>(files.size());
+			GraficoReader reader = new GraficoReader();
+			start = System.nanoTime();
+			for (File file: files) {
+				objects.add(reader.load(file));
+			}
+			addPhaseTime(phaseTimes, "loadElement", i, start); //$NON-NLS-1$
+
+			// Resolution of references between loaded objects
+			MyImporter importer = new MyImporter();
+			Map<String, IIdentifier> idLookup = new HashMap<String, IIdentifier>();
+			List<EObject> proxyHolders = new ArrayList<EObject>();
+			for (EObject object: objects) {
+				idLookup.put(((IIdentifier) object).getId(), (IIdentifier) object);
+				proxyHolders.addAll(importer.getProxyHolders(object));
+			}
+			start = System.nanoTime();
+			importer.resolveProxies(proxyHolders, idLookup);
+			addPhaseTime(phaseTimes, "resolveProxies", i, start); //$NON-NLS-1$
+		}
+		FileUtils.deleteFolder(imagesFolder);
+
+		StringBuilder result = new StringBuilder();
+		for (Map.Entry<String, Long> entry: phaseTimes.entrySet()) {
+			result.append(String.format(Locale.ROOT, "%s=%.1f ", entry.getKey(), entry.getValue() / 1e6 / iterations)); //$NON-NLS-1$
+		}
+		return result.toString().trim();
+	}
+
+	/**
+	 * Add the time elapsed since start to a phase (unless this is a warmup iteration)
+	 */
+	private void addPhaseTime(Map<String, Long> phaseTimes, String phase, int iteration, long start) {
+		long nanos = System.nanoTime() - start;
+		if (iteration >= warmups) {
+			Long total = phaseTimes.get(phase);
+			phaseTimes.put(phase, (total == null ? 0 : total.longValue()) + nanos);
+		}
+	}
+
+	/**
+	 * List files of a folder recursively (except the manifest and the layout file, which are not objects)
+	 */
+	private static void listFiles(File folder, List<File> files) {
+		for (File file: folder.listFiles()) {
+			if (file.isDirectory()) {
+				listFiles(file, files);
+			} else if (file.getName().endsWith(".xml")) { //$NON-NLS-1$
+				files.add(file);
+			}
+		}
+	}
+
+	/**
+	 * @return heap used after a full GC
+	 */
+	private static long usedHeap() {
+		System.gc();
+		Runtime runtime = Runtime.getRuntime();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	private Result measureImport(File folder, boolean cache) throws IOException {
+		Result result = new Result();
+		for (int i = 0; i < warmups + iterations; i++) {
+			MyImporter importer = new MyImporter();
+			importer.settings.set(GraficoCache.PREF_IMPORT_CACHE, cache);
+			long start = System.nanoTime();
+			importer.importModel(folder, new GraficoMetrics());
+			if (i >= warmups) {
+				result.add(System.nanoTime() - start, importer.getFileCount(), importer.getByteCount(), importer.getMetrics().getPhaseTimes());
+			}
+		}
+
+		// Allocation (sequential run, without metrics)
+		MyImporter importer = new MyImporter();
+		importer.settings.set(GraficoCache.PREF_IMPORT_CACHE, cache);
+		importer.settings.set(MyImporter.PREF_IMPORT_THREADS, 1);
+		long allocated = allocatedBytes();
+		importer.importModel(folder, GraficoMetrics.DISABLED);
+		result.allocatedBytes = allocatedBytes() - allocated;
+
+		return result;
+	}
+
+	/**
+	 * Measure peak heap used during a (sequential) import, and heap retained by the imported model.
+	 * Peak is measured on tenured heap pools after a full GC (short lived objects which die in young
+	 * pools are allocations, not retained memory), so it is an upper bound of live data during import.
+	 *
+	 * @return a description of the result
+	 */
+	private String measureImportHeap(File folder) throws IOException {
+		List<MemoryPoolMXBean> pools = new ArrayList<MemoryPoolMXBean>();
+		for (MemoryPoolMXBean pool: ManagementFactory.getMemoryPoolMXBeans()) {
+			String name = pool.getName();
+			if (pool.getType() == MemoryType.HEAP && !name.contains("Eden") && !name.contains("Survivor")) { //$NON-NLS-1$ //$NON-NLS-2$
+				pools.add(pool);
+			}
+		}
+
+		MyImporter importer = new MyImporter();
+		importer.settings.set(GraficoCache.PREF_IMPORT_CACHE, false);
+		importer.settings.set(MyImporter.PREF_IMPORT_THREADS, 1);
+		System.gc();
+		long baseline = 0;
+		for (MemoryPoolMXBean pool: pools) {
+			baseline += pool.getUsage().getUsed();
+			pool.resetPeakUsage();
+		}
+
+		IArchimateModel model = importer.importModel(folder, GraficoMetrics.DISABLED);
+
+		long peak = 0;
+		for (MemoryPoolMXBean pool: pools) {
+			peak += pool.getPeakUsage().getUsed();
+		}
+		System.gc();
+		long retained = 0;
+		for (MemoryPoolMXBean pool: pools) {
+			retained += pool.getUsage().getUsed();
+		}
+		// Keep the model reachable until it has been measured
+		if (model == null) {
+			return "no model"; //$NON-NLS-1$
+		}
+
+		double peakMB = (peak - baseline) / (1024.0 * 1024.0);
+		double modelMB = (retained - baseline) / (1024.0 * 1024.0);
+		double ratio = peakMB / Math.max(modelMB, 0.1);
+		String result = String.format(Locale.ROOT, "peak %.1f MB\tmodel %.1f MB\t(%.1fx)", peakMB, modelMB, ratio); //$NON-NLS-1$
+		if (modelMB >= MIN_MODEL_MB && ratio > maxHeapRatio) {
+			failed = true;
+			return result + String.format(Locale.ROOT, "\tFAILED: above %.1fx", maxHeapRatio); //$NON-NLS-1$
+		}
+		return result;
+	}
+
+	/**
+	 * Export the model again with the legacy writer and compare with files already in folder
+	 *
+	 * @return a description of the result
+	 */
+	private String verifyWriters(IArchimateModel model, File folder) throws IOException {
+		File legacyFolder = new File(folder.getPath() + "-legacy"); //$NON-NLS-1$
+		MyExporter legacyExporter = new MyExporter();
+		legacyExporter.settings.set(MyExporter.PREF_LEGACY_WRITER, true);
+		legacyExporter.exportModel(model, legacyFolder, GraficoMetrics.DISABLED);
+
+		List<String> differences = new ArrayList<String>();
+		int files = compare(new File(folder, MyExporter.MODEL_FOLDER), new File(legacyFolder, MyExporter.MODEL_FOLDER), differences);
+		if (differences.isEmpty()) {
+			return files + " files identical to legacy writer"; //$NON-NLS-1$
+		}
+		failed = true;
+		return "MISMATCH with legacy writer: " + differences; //$NON-NLS-1$
+	}
+
+	/**
+	 * Import the folder with both readers and compare resulting models
+	 *
+	 * @return a description of the result
+	 */
+	private String verifyReaders(File folder) throws IOException {
+		MyImporter importer = new MyImporter();
+		importer.settings.set(GraficoCache.PREF_IMPORT_CACHE, false);
+		IArchimateModel model = importer.importModel(folder, GraficoMetrics.DISABLED);
+		MyImporter legacyImporter = new MyImporter();
+		legacyImporter.settings.set(GraficoCache.PREF_IMPORT_CACHE, false);
+		legacyImporter.settings.set(MyImporter.PREF_LEGACY_READER, true);
+		IArchimateModel legacyModel = legacyImporter.importModel(folder, GraficoMetrics.DISABLED);
+
+		if (EcoreUtil.equals(model, legacyModel)) {
+			return "model equal to legacy reader's one"; //$NON-NLS-1$
+		}
+		failed = true;
+		return "MISMATCH with legacy reader"; //$NON-NLS-1$
+	}
+
+	/**
+	 * Compare two folders recursively
+	 *
+	 * @return number of files compared
+	 */
+	private static int compare(File folder, File otherFolder, List<String> differences) throws IOException {
+		int files = 0;
+		Set<String> names = new TreeSet<String>();
+		names.addAll(Arrays.asList(folder.list()));
+		names.addAll(Arrays.asList(otherFolder.list()));
+		for (String name: names) {
+			File file = new File(folder, name);
+			File otherFile = new File(otherFolder, name);
+			if (file.isDirectory() && otherFile.isDirectory()) {
+				files += compare(file, otherFile, differences);
+			} else if (!file.isFile() || !otherFile.isFile()
+					|| !Arrays.equals(Files.readAllBytes(file.toPath()), Files.readAllBytes(otherFile.toPath()))) {
+				differences.add(file.getPath());
+			} else {
+				files++;
+			}
+		}
+		return files;
+	}
+
+	/**
+	 * Measure import of an unchanged folder with the cache enabled (the cache is filled by warmup iterations)
+	 */
+	private Result measureCachedImport(File folder) throws IOException {
+		return measureImport(folder, true);
+	}
+
+	/**
+	 * Bytes allocated so far by the current thread (or -1 if the JVM can't tell)
+	 */
+	private static long allocatedBytes() {
+		try {
+			// com.sun.management.ThreadMXBean is not part of the standard API, so access it through reflection
+			Method method = Class.forName("com.sun.management.ThreadMXBean").getMethod("getThreadAllocatedBytes", long.class); //$NON-NLS-1$ //$NON-NLS-2$
+			return ((Long) method.invoke(ManagementFactory.getThreadMXBean(), Thread.currentThread().getId())).longValue();
+		} catch (Exception e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Measures accumulated over iterations
+	 */
+	private class Result {
+		long nanos;
+		long files;
+		long bytes;
+		long allocatedBytes;
+		Map<String, Long> phaseTimes = new LinkedHashMap<String, Long>();
+
+		void add(long nanos, long files, long bytes, Map<String, Long> phaseTimes) {
+			this.nanos += nanos;
+			this.files += files;
+			this.bytes += bytes;
+			for (Map.Entry<String, Long> entry: phaseTimes.entrySet()) {
+				Long total = this.phaseTimes.get(entry.getKey());
+				this.phaseTimes.put(entry.getKey(), (total == null ? 0 : total.longValue()) + entry.getValue().longValue());
+			}
+		}
+
+		String format(int size, String operation) {
+			double seconds = Math.max(nanos, 1) / 1e9;
+			StringBuilder phases = new StringBuilder();
+			for (Map.Entry<String, Long> entry: phaseTimes.entrySet()) {
+				phases.append(String.format(Locale.ROOT, "%s=%.1f ", entry.getKey(), entry.getValue() / 1e6 / iterations)); //$NON-NLS-1$
+			}
+			return String.format(Locale.ROOT, "%d\t%s\t%.1f\t%.0f\t%.1f\t%.1f\t%s", //$NON-NLS-1$
+					size, operation, nanos / 1e6 / iterations, files / seconds, bytes / (1024.0 * 1024.0) / seconds,
+					allocatedBytes / (1024.0 * 1024.0), phases.toString().trim());
+		}
+	}
+}
@@ -0,0 +1,235 @@
+/**
+ * This program and the accompanying materials
+ * are made available under the terms of the License
+ * which accompanies this distribution in the file LICENSE.txt
+ */
+package org.archicontribs.grafico;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.eclipse.emf.common.util.URI;
+import org.eclipse.emf.ecore.EObject;
+import org.eclipse.emf.ecore.resource.Resource;
+import org.eclipse.emf.ecore.resource.impl.BinaryResourceImpl;
+
+
+/**
+ * On-disk cache of parsed GRAFICO files, used to speed up re-import of mostly unchanged folders.
+ *
+ * The cache is stored in a ".grafico-cache" folder next to the "model" folder (this folder contains
+ * its own .gitignore so that it is never committed). For each file, it keeps its size, modification
+ * time and content hash, and the object it contains in EMF binary format (proxies included).
+ * A cached object is used if the file has the same size and modification time, or the same
+ * content hash (e.g. when a checkout only touched the file).
+ *
+ * Only files used during an import are written back to the cache, so entries of deleted files are evicted.
+ * Any problem reading the cache simply leads to an empty cache (files are then parsed again).
+ */
+class GraficoCache {
+
+	// Preference to use to enable the cache
+	static final String PREF_IMPORT_CACHE = "graficoImportCache"; //$NON-NLS-1$
+
+	static final String CACHE_FOLDER = ".grafico-cache"; //$NON-NLS-1$
+	static final String INDEX_FILE = "index.bin"; //$NON-NLS-1$
+
+	// Change it each time the format of the index (or the model) changes
+	private static final int VERSION = 1;
+
+	private final File folder;
+	private final File cacheFolder;
+	private final Map<String, Entry> entries = new HashMap<String, Entry>();
+	private final ConcurrentMap<String, Entry> usedEntries = new ConcurrentHashMap<String, Entry>();
+
+	// Binary resources are not thread safe, so each worker thread uses its own one
+	private final ThreadLocal<Resource> resource = new ThreadLocal<Resource>() {
+		@Override
+		protected Resource initialValue() {
+			return new BinaryResourceImpl();
+		}
+	};
+
+	/**
+	 * Open the cache of a GRAFICO folder (which is empty if it doesn't exist yet)
+	 *
+	 * @param folder GRAFICO folder (containing the model folder)
+	 */
+	GraficoCache(File folder) {
+		this.folder = folder;
+		this.cacheFolder = new File(folder, CACHE_FOLDER);
+		File indexFile = new File(cacheFolder, INDEX_FILE);
+		if (indexFile.isFile()) {
+			try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(indexFile.toPath())))) {
+				if (in.readInt() == VERSION) {
+					int count = in.readInt();
+					for (int i = 0; i < count; i++) {
+						String path = in.readUTF();
+						Entry entry = new Entry(in.readLong(), in.readLong(), in.readUTF(), new byte[in.readInt()]);
+						in.readFully(entry.bytes);
+						entries.put(path, entry);
+					}
+				}
+			} catch (IOException e) {
+				// Corrupted or truncated cache: start again from scratch
+				entries.clear();
+			}
+		}
+	}
+
+	/**
+	 * Get the object saved in a file from the cache. Can be called from any worker thread.
+	 *
+	 * @param file
+	 * @return the object, or null if this file is not in the cache or has changed
+	 * @throws IOException
+	 */
+	EObject get(File file) throws IOException {
+		String path = getPath(file);
+		Entry entry = entries.get(path);
+		if (entry == null) {
+			return null;
+		}
+
+		long size = file.length();
+		long lastModified = file.lastModified();
+		if (size != entry.size) {
+			return null;
+		}
+		if (lastModified != entry.lastModified) {
+			String hash = ContentHash.of(file);
+			if (!hash.equals(entry.hash)) {
+				return null;
+			}
+			entry = new Entry(size, lastModified, hash, entry.bytes);
+		}
+
+		EObject object = decode(file, entry.bytes);
+		usedEntries.put(path, entry);
+		return object;
+	}
+
+	/**
+	 * Add the object just parsed from a file to the cache. Can be called from any worker thread,
+	 * but has to be called before the object is attached to the model (and before its proxies are resolved).
+	 *
+	 * @param file
+	 * @param object
+	 * @throws IOException
+	 */
+	void put(File file, EObject object) throws IOException {
+		usedEntries.put(getPath(file), new Entry(file.length(), file.lastModified(), ContentHash.of(file), encode(file, object)));
+	}
+
+	/**
+	 * Write the cache (containing only files used since it has been opened) to disk
+	 *
+	 * @throws IOException
+	 */
+	void save() throws IOException {
+		cacheFolder.mkdirs();
+		createGitignore(cacheFolder);
+
+		// Write to a temporary file first, so that an interrupted save doesn't leave a truncated index
+		File indexFile = new File(cacheFolder, INDEX_FILE);
+		File tmpFile = new File(cacheFolder, INDEX_FILE + ".tmp"); //$NON-NLS-1$
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmpFile.toPath())))) {
+			out.writeInt(VERSION);
+			out.writeInt(usedEntries.size());
+			for (Map.Entry<String, Entry> usedEntry: usedEntries.entrySet()) {
+				Entry entry = usedEntry.getValue();
+				out.writeUTF(usedEntry.getKey());
+				out.writeLong(entry.size);
+				out.writeLong(entry.lastModified);
+				out.writeUTF(entry.hash);
+				out.writeInt(entry.bytes.length);
+				out.write(entry.bytes);
+			}
+		}
+		Files.move(tmpFile.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	/**
+	 * Make sure git ignores the cache folder (and everything inside)
+	 *
+	 * @param cacheFolder
+	 * @throws IOException
+	 */
+	static void createGitignore(File cacheFolder) throws IOException {
+		File gitignore = new File(cacheFolder, ".gitignore"); //$NON-NLS-1$
+		if (!gitignore.isFile()) {
+			Files.write(gitignore.toPath(), "*\n".getBytes(StandardCharsets.US_ASCII)); //$NON-NLS-1$
+		}
+	}
+
+	/**
+	 * @return number of entries read from disk
+	 */
+	int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Path of a file relatively to the GRAFICO folder (always using '/')
+	 */
+	private String getPath(File file) {
+		return folder.toURI().relativize(file.toURI()).getPath();
+	}
+
+	private byte[] encode(File file, EObject object) throws IOException {
+		Resource binaryResource = resource.get();
+		// Proxies are saved relatively to the file, and resolved against it when decoded
+		binaryResource.setURI(URI.createFileURI(file.getAbsolutePath()));
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		binaryResource.getContents().add(object);
+		try {
+			binaryResource.save(out, null);
+		} finally {
+			binaryResource.getContents().clear();
+		}
+		return out.toByteArray();
+	}
+
+	private EObject decode(File file, byte[] bytes) throws IOException {
+		Resource binaryResource = resource.get();
+		binaryResource.setURI(URI.createFileURI(file.getAbsolutePath()));
+		try {
+			binaryResource.load(new ByteArrayInputStream(bytes), null);
+			return binaryResource.getContents().isEmpty() ? null : binaryResource.getContents().get(0);
+		} finally {
+			// Detach decoded object (so that unload() doesn't turn it into a proxy), then make the resource loadable again
+			binaryResource.getContents().clear();
+			binaryResource.unload();
+		}
+	}
+
+	/**
+	 * Cached state of a file
+	 */
+	private static class Entry {
+		long size;
+		long lastModified;
+		String hash;
+		byte[] bytes;
+
+		Entry(long size, long lastModified, String hash, byte[] bytes) {
+			this.size = size;
+			this.lastModified = lastModified;
+			this.hash = hash;
+			this.bytes = bytes;
+		}
+	}
+}
@@ -0,0 +1,1165 @@
+/**
+ * This program and the accompanying materials
+ * are made available under the terms of the License
+ * which accompanies this distribution in the file LICENSE.txt
+ */
+package org.archicontribs.grafico;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+
+import org.eclipse.emf.common.util.URI;
+import org.eclipse.emf.ecore.EObject;
+import org.eclipse.emf.ecore.EReference;
+import org.eclipse.emf.ecore.EStructuralFeature;
+import org.eclipse.emf.ecore.InternalEObject;
+import org.eclipse.emf.ecore.util.EcoreUtil;
+
+import com.archimatetool.model.IArchimatePackage;
+import com.archimatetool.model.IIdentifier;
+
+
+/**
+ * Semantic diff and three-way merge of GRAFICO folders.
+ *
+ * Folders are indexed by object id (taken from file names, as produced by MyExporter: Class_id.xml,
+ * and directory names for folder.xml) and content hash, hashing files in parallel. Objects whose
+ * file has the same hash are skipped without being parsed: only changed files are loaded, to find
+ * which features of elements, relationships and views have changed. Moves between folders (but not
+ * layout changes, see GraficoLayout) are detected from the folder containing each object.
+ *
+ * A three-way merge takes changes made in "theirs" since "base" and applies them to "ours" (like git
+ * merges into a working tree). When both sides changed the same object, features changed on one side
+ * only are merged; the object is in conflict if the same feature changed on both sides, or if it has
+ * been deleted on one side and changed on the other. Contents of views (children and connections) are
+ * merged the same way, object by object (matched by id), so that e.g. different shapes moved on both
+ * sides of the same view don't conflict. Changes which would leave a reference to an object
+ * deleted on the other side are also conflicts. Conflicting objects are left as they are in "ours".
+ *
+ * Results are returned as a change set, which can be written as JSON.
+ */
+class GraficoDiff {
+
+	// Key of the model itself (saved in model/folder.xml)
+	static final String MODEL_KEY = MyExporter.MODEL_FOLDER;
+
+	/**
+	 * Kinds of objects
+	 */
+	enum Category {
+		MODEL, FOLDER, ELEMENT, RELATIONSHIP, VIEW, IMAGE
+	}
+
+	/**
+	 * Kinds of changes
+	 */
+	enum Type {
+		ADDED, DELETED, MODIFIED, MOVED
+	}
+
+	// Readers and writers are not thread safe, so each worker thread uses its own one
+	private final ThreadLocal<GraficoReader> reader = new ThreadLocal<GraficoReader>() {
+		@Override
+		protected GraficoReader initialValue() {
+			return new GraficoReader();
+		}
+	};
+	private final ThreadLocal<GraficoWriter> writer = new ThreadLocal<GraficoWriter>() {
+		@Override
+		protected GraficoWriter initialValue() {
+			return new GraficoWriter();
+		}
+	};
+
+	private WorkerPool workerPool;
+
+	/**
+	 * Compare two GRAFICO folders
+	 *
+	 * @param oldFolder
+	 * @param newFolder
+	 * @return changes made in newFolder since oldFolder
+	 * @throws IOException
+	 */
+	ChangeSet diff(File oldFolder, File newFolder) throws IOException {
+		long start = System.nanoTime();
+		workerPool = new WorkerPool(WorkerPool.getThreadCount(MyImporter.PREF_IMPORT_THREADS));
+		try {
+			Tree oldTree = new Tree(oldFolder);
+			Tree newTree = new Tree(newFolder);
+			oldTree.scan();
+			newTree.scan();
+			oldTree.await();
+			newTree.await();
+
+			ChangeSet changeSet = new ChangeSet();
+			changeSet.files = oldTree.entries.size() + newTree.entries.size();
+			for (String key: getKeys(oldTree, newTree)) {
+				Change change = compare(key, oldTree.entries.get(key), newTree.entries.get(key));
+				if (change != null) {
+					changeSet.changes.add(change);
+				}
+			}
+			findChangedFeatures(changeSet.changes);
+
+			changeSet.nanos = System.nanoTime() - start;
+			return changeSet;
+		} finally {
+			workerPool.shutdown();
+			workerPool = null;
+		}
+	}
+
+	/**
+	 * Merge changes made in theirs since base into ours
+	 *
+	 * @param baseFolder common ancestor
+	 * @param oursFolder folder to update
+	 * @param theirsFolder
+	 * @param apply true to apply changes (which are not in conflict) to oursFolder
+	 * @return changes from theirs (applied or to apply) and conflicts
+	 * @throws IOException
+	 */
+	ChangeSet merge(File baseFolder, File oursFolder, File theirsFolder, boolean apply) throws IOException {
+		long start = System.nanoTime();
+		workerPool = new WorkerPool(WorkerPool.getThreadCount(MyImporter.PREF_IMPORT_THREADS));
+		try {
+			Tree base = new Tree(baseFolder);
+			Tree ours = new Tree(oursFolder);
+			Tree theirs = new Tree(theirsFolder);
+			base.scan();
+			ours.scan();
+			theirs.scan();
+			base.await();
+			ours.await();
+			theirs.await();
+
+			ChangeSet changeSet = new ChangeSet();
+			changeSet.files = base.entries.size() + ours.entries.size() + theirs.entries.size();
+			List<Change> bothChanged = new ArrayList<Change>();
+			Set<String> oursChanged = new HashSet<String>();
+
+			for (String key: getKeys(base, ours, theirs)) {
+				Entry b = base.entries.get(key);
+				Entry o = ours.entries.get(key);
+				Entry t = theirs.entries.get(key);
+				boolean oChanged = !isSame(b, o);
+				boolean tChanged = !isSame(b, t);
+				if (oChanged) {
+					oursChanged.add(key);
+				}
+
+				if (!tChanged || isSame(o, t)) {
+					// Nothing to take from theirs
+					continue;
+				} else if (!oChanged) {
+					changeSet.changes.add(compare(key, o, t));
+				} else if (o == null || t == null) {
+					Entry entry = o == null ? t : o;
+					changeSet.addConflict(key, entry.category, entry.path, o == null ? "Deleted in ours, changed in theirs" : "Changed in ours, deleted in theirs", null); //$NON-NLS-1$ //$NON-NLS-2$
+				} else if (b == null) {
+					changeSet.addConflict(key, o.category, o.path, "Added differently in ours and theirs", null); //$NON-NLS-1$
+				} else if (!o.parent.equals(t.parent) && !o.parent.equals(b.parent) && !t.parent.equals(b.parent)) {
+					changeSet.addConflict(key, o.category, o.path, "Moved to different folders in ours and theirs", null); //$NON-NLS-1$
+				} else {
+					// Both changed: folder is taken from the side which moved the object
+					Change change = compare(key, o, t);
+					change.parent = t.parent.equals(b.parent) ? o.parent : t.parent;
+					change.moved = !change.parent.equals(o.parent);
+					if (o.hash.equals(t.hash) || t.hash.equals(b.hash)) {
+						// Content is already the one to keep
+						if (change.moved) {
+							change.type = Type.MOVED;
+							changeSet.changes.add(change);
+						}
+					} else if (o.hash.equals(b.hash)) {
+						// Content only changed in theirs
+						changeSet.changes.add(change);
+					} else {
+						// Content has to be merged feature by feature
+						change.base = b;
+						bothChanged.add(change);
+					}
+				}
+			}
+
+			// Merge objects changed on both sides, and find features changed in the other ones
+			mergeFeatures(bothChanged, changeSet);
+			findChangedFeatures(changeSet.changes);
+
+			// Changes must not leave references to deleted objects
+			checkReferences(changeSet, ours, oursChanged);
+
+			if (apply) {
+				apply(changeSet, ours);
+				// The manifest of ours doesn't list its files anymore (next import would scan the folder anyway)
+				if (!changeSet.changes.isEmpty()) {
+					Files.deleteIfExists(GraficoManifest.getFile(ours.modelFolder.getParentFile()).toPath());
+				}
+			}
+
+			changeSet.nanos = System.nanoTime() - start;
+			return changeSet;
+		} finally {
+			workerPool.shutdown();
+			workerPool = null;
+		}
+	}
+
+	/**
+	 * @return keys of all trees, sorted
+	 */
+	private static Set<String> getKeys(Tree... trees) {
+		Set<String> keys = new TreeSet<String>();
+		for (Tree tree: trees) {
+			keys.addAll(tree.entries.keySet());
+		}
+		return keys;
+	}
+
+	/**
+	 * @return true if both entries are missing, or have same content and folder
+	 */
+	private static boolean isSame(Entry e1, Entry e2) {
+		if (e1 == null || e2 == null) {
+			return e1 == e2;
+		}
+		return e1.hash.equals(e2.hash) && e1.parent.equals(e2.parent);
+	}
+
+	/**
+	 * @return the change from e1 to e2 (or null if none)
+	 */
+	private static Change compare(String key, Entry e1, Entry e2) {
+		if (isSame(e1, e2)) {
+			return null;
+		}
+		Change change = new Change();
+		change.key = key;
+		change.to = e2;
+		change.from = e1;
+		if (e1 == null) {
+			change.type = Type.ADDED;
+			change.category = e2.category;
+			change.path = e2.path;
+			change.parent = e2.parent;
+		} else if (e2 == null) {
+			change.type = Type.DELETED;
+			change.category = e1.category;
+			change.path = e1.path;
+		} else {
+			change.category = e2.category;
+			change.path = e2.path;
+			change.parent = e2.parent;
+			change.moved = !e1.parent.equals(e2.parent);
+			change.type = e1.hash.equals(e2.hash) ? Type.MOVED : Type.MODIFIED;
+		}
+		return change;
+	}
+
+	/**
+	 * Load both versions of modified objects (in parallel) and record which features have changed
+	 */
+	private void findChangedFeatures(List<Change> changes) throws IOException {
+		List<Future<Void>> pending = new ArrayList<Future<Void>>();
+		for (final Change change: changes) {
+			if (change.type != Type.MODIFIED || change.category == Category.IMAGE || change.features != null) {
+				continue;
+			}
+			pending.add(workerPool.submit(new Callable<Void>() {
+				@Override
+				public Void call() throws IOException {
+					change.features = getChangedFeatures(load(change.from.file), load(change.to.file));
+					return null;
+				}
+			}));
+		}
+		for (Future<Void> future: pending) {
+			WorkerPool.get(future);
+		}
+	}
+
+	/**
+	 * Merge features of objects changed on both sides (in parallel)
+	 */
+	private void mergeFeatures(List<Change> changes, ChangeSet changeSet) throws IOException {
+		List<Future<Void>> pending = new ArrayList<Future<Void>>();
+		for (final Change change: changes) {
+			if (change.type != Type.MODIFIED || change.category == Category.IMAGE) {
+				continue;
+			}
+			pending.add(workerPool.submit(new Callable<Void>() {
+				@Override
+				public Void call() throws IOException {
+					mergeFeatures(change);
+					return null;
+				}
+			}));
+		}
+		for (Future<Void> future: pending) {
+			WorkerPool.get(future);
+		}
+
+		for (Change change: changes) {
+			if (change.conflictingFeatures != null) {
+				changeSet.addConflict(change.key, change.category, change.path, "Same features changed in ours and theirs", change.conflictingFeatures); //$NON-NLS-1$
+			} else if (change.category == Category.IMAGE && change.type == Type.MODIFIED) {
+				changeSet.addConflict(change.key, change.category, change.path, "Changed in ours and theirs", null); //$NON-NLS-1$
+			} else {
+				changeSet.changes.add(change);
+			}
+		}
+	}
+
+	/**
+	 * Apply features changed in theirs to ours, unless they have also been changed in ours.
+	 * Can be called from any worker thread.
+	 */
+	private void mergeFeatures(Change change) throws IOException {
+		EObject base = load(change.base.file);
+		EObject ours = load(change.from.file);
+		EObject theirs = load(change.to.file);
+		if (base.eClass() != ours.eClass() || base.eClass() != theirs.eClass()) {
+			change.conflictingFeatures = Collections.singletonList("eClass"); //$NON-NLS-1$
+			return;
+		}
+
+		List<String> conflicts = new ArrayList<String>();
+		change.features = new ArrayList<String>();
+		mergeObject(base, ours, theirs, "", change.features, conflicts); //$NON-NLS-1$
+		if (conflicts.isEmpty()) {
+			rebind(ours, conflicts);
+		}
+		if (!conflicts.isEmpty()) {
+			change.conflictingFeatures = conflicts;
+			return;
+		}
+
+		// Save the merged object as the exporter would
+		GraficoWriter threadWriter = writer.get();
+		threadWriter.serialize(ours, change.from.file);
+		change.mergedContent = new byte[threadWriter.getLength()];
+		System.arraycopy(threadWriter.getBytes(), 0, change.mergedContent, 0, threadWriter.getLength());
+	}
+
+	/**
+	 * Apply features changed in theirs to ours (features changed on both sides are conflicts, unless they
+	 * hold contained objects with an id, which are then merged one by one)
+	 *
+	 * @param prefix prefix of feature names (path of a contained object)
+	 * @param merged names of features taken from theirs
+	 * @param conflicts names of features changed on both sides
+	 */
+	private static void mergeObject(EObject base, EObject ours, EObject theirs, String prefix, List<String> merged, List<String> conflicts) {
+		for (EStructuralFeature feature: base.eClass().getEAllStructuralFeatures()) {
+			if (!isCompared(feature) || haveEqualFeature(base, theirs, feature)) {
+				continue;
+			}
+			if (haveEqualFeature(base, ours, feature) || haveEqualFeature(ours, theirs, feature)) {
+				merged.add(prefix + feature.getName());
+				copyFeature(theirs, ours, feature);
+			} else if (feature instanceof EReference && ((EReference) feature).isContainment() && feature.isMany()) {
+				mergeById(base, ours, theirs, (EReference) feature, prefix, merged, conflicts);
+			} else {
+				conflicts.add(prefix + feature.getName());
+			}
+		}
+	}
+
+	/**
+	 * Merge contained objects (e.g. children of a view) matched by id: objects deleted or added in theirs are
+	 * deleted from or added to ours, and objects kept on all sides are merged feature by feature. Objects
+	 * deleted on one side and changed on the other, or reordered differently on both sides, are conflicts.
+	 */
+	@SuppressWarnings("unchecked")
+	private static void mergeById(EObject base, EObject ours, EObject theirs, EReference feature, String prefix, List<String> merged, List<String> conflicts) {
+		String name = prefix + feature.getName();
+		List<EObject> oursList = (List<EObject>) ours.eGet(feature);
+		List<EObject> theirsList = (List<EObject>) theirs.eGet(feature);
+		Map<String, EObject> baseObjects = indexById((List<EObject>) base.eGet(feature));
+		Map<String, EObject> oursObjects = indexById(oursList);
+		Map<String, EObject> theirsObjects = indexById(theirsList);
+		if (baseObjects == null || oursObjects == null || theirsObjects == null) {
+			// Objects can't be matched
+			conflicts.add(name);
+			return;
+		}
+
+		// Order of objects kept on all sides can only change on one side
+		List<String> baseOrder = new ArrayList<String>();
+		for (String id: baseObjects.keySet()) {
+			if (oursObjects.containsKey(id) && theirsObjects.containsKey(id)) {
+				baseOrder.add(id);
+			}
+		}
+		List<String> oursOrder = getOrder(oursObjects, baseOrder);
+		List<String> theirsOrder = getOrder(theirsObjects, baseOrder);
+		if (!theirsOrder.equals(baseOrder) && !oursOrder.equals(baseOrder) && !oursOrder.equals(theirsOrder)) {
+			conflicts.add(name);
+			return;
+		}
+
+		// Objects deleted on one side (unless changed on the other), and objects kept on all sides
+		for (Map.Entry<String, EObject> entry: baseObjects.entrySet()) {
+			String childName = name + "[" + entry.getKey() + "]"; //$NON-NLS-1$ //$NON-NLS-2$
+			EObject oursObject = oursObjects.get(entry.getKey());
+			EObject theirsObject = theirsObjects.get(entry.getKey());
+			if (oursObject != null && theirsObject == null) {
+				if (isEqual(entry.getValue(), oursObject)) {
+					oursList.remove(oursObject);
+					oursObjects.remove(entry.getKey());
+					merged.add(childName);
+				} else {
+					conflicts.add(childName);
+				}
+			} else if (oursObject == null && theirsObject != null) {
+				if (!isEqual(entry.getValue(), theirsObject)) {
+					conflicts.add(childName);
+				}
+			} else if (oursObject != null && !isEqual(entry.getValue(), theirsObject)) {
+				mergeObject(entry.getValue(), oursObject, theirsObject, childName + ".", merged, conflicts); //$NON-NLS-1$
+			}
+		}
+
+		// Take the order of theirs if only theirs changed it (objects added in ours stay where they are)
+		if (!theirsOrder.equals(baseOrder) && oursOrder.equals(baseOrder)) {
+			List<EObject> reordered = new ArrayList<EObject>(oursList);
+			int next = 0;
+			for (int i = 0; i < reordered.size(); i++) {
+				if (baseObjects.containsKey(getId(reordered.get(i))) && theirsObjects.containsKey(getId(reordered.get(i)))) {
+					reordered.set(i, oursObjects.get(theirsOrder.get(next++)));
+				}
+			}
+			oursList.clear();
+			oursList.addAll(reordered);
+			merged.add(name);
+		}
+
+		// Objects added in theirs, inserted after the object preceding them in theirs
+		List<String> theirsIds = new ArrayList<String>(theirsObjects.keySet());
+		for (int i = 0; i < theirsIds.size(); i++) {
+			String id = theirsIds.get(i);
+			if (baseObjects.containsKey(id)) {
+				continue;
+			}
+			String childName = name + "[" + id + "]"; //$NON-NLS-1$ //$NON-NLS-2$
+			EObject oursObject = oursObjects.get(id);
+			if (oursObject != null) {
+				if (!isEqual(oursObject, theirsObjects.get(id))) {
+					conflicts.add(childName);
+				}
+				continue;
+			}
+			int position = 0;
+			for (int j = i - 1; j >= 0 && position == 0; j--) {
+				EObject previous = oursObjects.get(theirsIds.get(j));
+				if (previous != null) {
+					position = oursList.indexOf(previous) + 1;
+				}
+			}
+			oursList.add(position, theirsObjects.get(id));
+			oursObjects.put(id, theirsObjects.get(id));
+			merged.add(childName);
+		}
+	}
+
+	/**
+	 * @return ids of objects (in their order), or null if some objects have no id, or the same id
+	 */
+	private static Map<String, EObject> indexById(List<EObject> objects) {
+		Map<String, EObject> index = new LinkedHashMap<String, EObject>();
+		for (EObject object: objects) {
+			String id = getId(object);
+			if (id == null || index.put(id, object) != null) {
+				return null;
+			}
+		}
+		return index;
+	}
+
+	private static String getId(EObject object) {
+		return object instanceof IIdentifier ? ((IIdentifier) object).getId() : null;
+	}
+
+	/**
+	 * @return ids of objects, in their order, restricted to some ids
+	 */
+	private static List<String> getOrder(Map<String, EObject> objects, List<String> ids) {
+		Set<String> kept = new HashSet<String>(ids);
+		List<String> order = new ArrayList<String>();
+		for (String id: objects.keySet()) {
+			if (kept.contains(id)) {
+				order.add(id);
+			}
+		}
+		return order;
+	}
+
+	private static boolean isEqual(EObject o1, EObject o2) {
+		return new EcoreUtil.EqualityHelper().equals(o1, o2);
+	}
+
+	/**
+	 * Objects taken from theirs may reference other objects of theirs (e.g. a connection and its ends):
+	 * bind these references to the objects of ours with the same id. A reference to an object which
+	 * isn't in ours anymore is a conflict.
+	 */
+	@SuppressWarnings("unchecked")
+	private static void rebind(EObject ours, List<String> conflicts) {
+		Map<String, EObject> objects = new HashMap<String, EObject>();
+		List<EObject> eObjects = new ArrayList<EObject>();
+		eObjects.add(ours);
+		for (Iterator<EObject> iter = ours.eAllContents(); iter.hasNext();) {
+			eObjects.add(iter.next());
+		}
+		for (EObject eObject: eObjects) {
+			if (getId(eObject) != null) {
+				objects.put(getId(eObject), eObject);
+			}
+		}
+
+		for (EObject eObject: eObjects) {
+			for (EReference reference: eObject.eClass().getEAllReferences()) {
+				if (reference.isContainment() || reference.isContainer() || !isCompared(reference)) {
+					continue;
+				}
+				if (reference.isMany()) {
+					List<EObject> values = (List<EObject>) eObject.eGet(reference);
+					for (int i = 0; i < values.size(); i++) {
+						EObject value = getBoundObject(values.get(i), ours, objects, conflicts);
+						if (value != values.get(i)) {
+							if (values.contains(value)) {
+								// Already referenced (lists of references don't hold duplicates)
+								values.remove(i--);
+							} else {
+								values.set(i, value);
+							}
+						}
+					}
+				} else {
+					EObject value = (EObject) eObject.eGet(reference);
+					EObject boundValue = getBoundObject(value, ours, objects, conflicts);
+					if (boundValue != value) {
+						eObject.eSet(reference, boundValue);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the object of ours to reference instead of an object (the object itself if it's a proxy or in ours)
+	 */
+	private static EObject getBoundObject(EObject object, EObject ours, Map<String, EObject> objects, List<String> conflicts) {
+		if (object == null || object.eIsProxy() || EcoreUtil.getRootContainer(object) == ours) {
+			return object;
+		}
+		EObject boundObject = objects.get(getId(object));
+		if (boundObject == null) {
+			conflicts.add("reference to " + getId(object)); //$NON-NLS-1$
+			return object;
+		}
+		return boundObject;
+	}
+
+	/**
+	 * Find changes which would leave references to deleted objects, and turn them into conflicts.
+	 * Dropping a change can leave other references to missing objects (e.g. a view showing a relationship
+	 * whose addition has been dropped, or an object of ours referencing an object deleted in theirs once
+	 * the change of this object from theirs has been dropped), so this is repeated until no change is dropped.
+	 */
+	private void checkReferences(ChangeSet changeSet, Tree ours, Set<String> oursChanged) throws IOException {
+		// References of objects changed in theirs
+		Map<Change, Future<Set<String>>> theirsReferences = new HashMap<Change, Future<Set<String>>>();
+		for (Change change: changeSet.changes) {
+			if ((change.type == Type.ADDED || change.type == Type.MODIFIED) && change.category != Category.IMAGE) {
+				theirsReferences.put(change, getReferences(change.to.file));
+			}
+		}
+		// Objects left as they are in ours: changed in ours, or whose change from theirs has been dropped
+		Set<String> keptInOurs = new HashSet<String>(oursChanged);
+		Map<String, Future<Set<String>>> oursReferences = new HashMap<String, Future<Set<String>>>();
+		Set<String> dropped = new HashSet<String>();
+
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+
+			// Objects of the merged folder
+			Set<String> merged = new HashSet<String>(ours.entries.keySet());
+			Set<String> deletedByTheirs = new HashSet<String>();
+			for (Change change: changeSet.changes) {
+				if (change.type == Type.ADDED) {
+					merged.add(change.key);
+				} else if (change.type == Type.DELETED) {
+					merged.remove(change.key);
+					deletedByTheirs.add(change.key);
+				}
+			}
+
+			// Changes from theirs must not reference objects missing from the merged folder
+			for (Iterator<Change> iter = changeSet.changes.iterator(); iter.hasNext();) {
+				Change change = iter.next();
+				Future<Set<String>> references = theirsReferences.get(change);
+				if (references != null) {
+					for (String reference: WorkerPool.get(references)) {
+						if (!merged.contains(reference)) {
+							changeSet.addConflict(change.key, change.category, change.path, "References " + reference //$NON-NLS-1$
+									+ (dropped.contains(reference) ? " whose change from theirs is in conflict" : " which has been deleted in ours"), null); //$NON-NLS-1$ //$NON-NLS-2$
+							iter.remove();
+							dropped.add(change.key);
+							keptInOurs.add(change.key);
+							changed = true;
+							break;
+						}
+					}
+				}
+			}
+
+			// Objects left as they are in ours must not reference objects deleted in theirs
+			if (deletedByTheirs.isEmpty()) {
+				continue;
+			}
+			for (String key: keptInOurs) {
+				Entry entry = ours.entries.get(key);
+				if (entry != null && entry.category != Category.IMAGE && !oursReferences.containsKey(key)) {
+					oursReferences.put(key, getReferences(entry.file));
+				}
+			}
+			for (Map.Entry<String, Future<Set<String>>> entry: oursReferences.entrySet()) {
+				for (String reference: WorkerPool.get(entry.getValue())) {
+					if (deletedByTheirs.remove(reference)) {
+						Entry oursEntry = ours.entries.get(entry.getKey());
+						changeSet.addConflict(oursEntry.key, oursEntry.category, oursEntry.path, "References " + reference + " which has been deleted in theirs", null); //$NON-NLS-1$ //$NON-NLS-2$
+						// Keep the referenced object (as it is in ours, so its own references are checked next)
+						for (Iterator<Change> iter = changeSet.changes.iterator(); iter.hasNext();) {
+							if (iter.next().key.equals(reference)) {
+								iter.remove();
+							}
+						}
+						dropped.add(reference);
+						keptInOurs.add(reference);
+						changed = true;
+					}
+				}
+			}
+		}
+	}
+
+	private Future<Set<String>> getReferences(final File file) {
+		return workerPool.submit(new Callable<Set<String>>() {
+			@Override
+			public Set<String> call() throws IOException {
+				return GraficoValidator.getReferences(file);
+			}
+		});
+	}
+
+	/**
+	 * Apply changes to ours: folders first (parents before children), then other objects, then deletions
+	 * (children before parents)
+	 */
+	private void apply(ChangeSet changeSet, Tree ours) throws IOException {
+		List<Change> changes = new ArrayList<Change>(changeSet.changes);
+		Collections.sort(changes, new Comparator<Change>() {
+			@Override
+			public int compare(Change c1, Change c2) {
+				int result = Integer.compare(getRank(c1), getRank(c2));
+				if (result == 0 && c1.type == Type.DELETED) {
+					return Integer.compare(c2.path.length(), c1.path.length());
+				}
+				return result != 0 ? result : Integer.compare(c1.path.length(), c2.path.length());
+			}
+
+			private int getRank(Change change) {
+				boolean folder = change.category == Category.FOLDER || change.category == Category.MODEL;
+				if (change.type == Type.DELETED) {
+					return folder ? 3 : 2;
+				}
+				return folder ? 0 : 1;
+			}
+		});
+
+		for (Change change: changes) {
+			if (change.category == Category.IMAGE) {
+				File target = new File(ours.folder, change.key);
+				if (change.type == Type.DELETED) {
+					Files.deleteIfExists(target.toPath());
+				} else {
+					target.getParentFile().mkdirs();
+					Files.copy(change.to.file.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+				}
+			} else if (change.category == Category.FOLDER || change.category == Category.MODEL) {
+				applyFolder(change, ours);
+			} else {
+				applyObject(change, ours);
+			}
+		}
+	}
+
+	private void applyFolder(Change change, Tree ours) throws IOException {
+		File directory = ours.directories.get(change.key);
+		if (change.type == Type.DELETED) {
+			Files.deleteIfExists(new File(directory, MyExporter.FOLDER_XML).toPath());
+			String[] children = directory.list();
+			if (children != null && children.length == 0) {
+				Files.delete(directory.toPath());
+			}
+			ours.directories.remove(change.key);
+			return;
+		}
+
+		if (change.category != Category.MODEL) {
+			File target = new File(getDirectory(ours, change.parent, change), change.key);
+			if (directory == null) {
+				target.mkdirs();
+			} else if (!target.equals(directory)) {
+				Files.move(directory.toPath(), target.toPath());
+				// Everything inside the folder moves with it
+				String oldPath = directory.getPath() + File.separator;
+				for (Map.Entry<String, File> entry: ours.directories.entrySet()) {
+					if (entry.getValue().getPath().startsWith(oldPath)) {
+						entry.setValue(new File(target, entry.getValue().getPath().substring(oldPath.length())));
+					}
+				}
+			}
+			ours.directories.put(change.key, target);
+			directory = target;
+		}
+		if (change.type != Type.MOVED) {
+			writeContent(change, new File(directory, MyExporter.FOLDER_XML));
+		}
+	}
+
+	private void applyObject(Change change, Tree ours) throws IOException {
+		Entry current = ours.entries.get(change.key);
+		File currentFile = current == null ? null : locate(ours, current.parent, current.file.getName(), change);
+		if (change.type == Type.DELETED) {
+			Files.deleteIfExists(currentFile.toPath());
+			return;
+		}
+
+		File target = locate(ours, change.parent, change.to.file.getName(), change);
+		target.getParentFile().mkdirs();
+		if (change.type == Type.MOVED) {
+			Files.move(currentFile.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			return;
+		}
+		writeContent(change, target);
+		if (currentFile != null && !currentFile.equals(target)) {
+			Files.deleteIfExists(currentFile.toPath());
+		}
+	}
+
+	/**
+	 * Write the new content of an object (merged, or taken from theirs)
+	 */
+	private static void writeContent(Change change, File target) throws IOException {
+		if (change.mergedContent != null) {
+			Files.write(target.toPath(), change.mergedContent);
+		} else {
+			Files.copy(change.to.file.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	/**
+	 * File of an object in ours (in the current directory of its folder, and in its shard if ours is sharded)
+	 */
+	private static File locate(Tree ours, String parent, String fileName, Change change) throws IOException {
+		File directory = getDirectory(ours, parent, change);
+		if (ours.sharded) {
+			directory = new File(directory, GraficoLayout.getShard(change.key));
+		}
+		return new File(directory, fileName);
+	}
+
+	private static File getDirectory(Tree ours, String key, Change change) throws IOException {
+		File directory = ours.directories.get(key);
+		if (directory == null) {
+			throw new IOException("Unable to find folder " + key + " of " + change.path); //$NON-NLS-1$ //$NON-NLS-2$
+		}
+		return directory;
+	}
+
+	/**
+	 * Load an object from a file. Can be called from any worker thread.
+	 * Proxies are made relative again (as written by the exporter), so that objects loaded
+	 * from different folders can be compared and saved anywhere.
+	 */
+	private EObject load(File file) throws IOException {
+		EObject object = reader.get().load(file);
+		List<EObject> eObjects = new ArrayList<EObject>();
+		eObjects.add(object);
+		for (Iterator<EObject> iter = object.eAllContents(); iter.hasNext();) {
+			eObjects.add(iter.next());
+		}
+		for (EObject eObject: eObjects) {
+			for (EObject reference: eObject.eCrossReferences()) {
+				if (reference.eIsProxy()) {
+					URI uri = ((InternalEObject) reference).eProxyURI();
+					((InternalEObject) reference).eSetProxyURI(URI.createFileURI(uri.lastSegment()).appendFragment(uri.fragment()));
+				}
+			}
+		}
+		return object;
+	}
+
+	/**
+	 * @return names of features which differ
+	 */
+	private static List<String> getChangedFeatures(EObject o1, EObject o2) {
+		List<String> features = new ArrayList<String>();
+		if (o1.eClass() != o2.eClass()) {
+			features.add("eClass"); //$NON-NLS-1$
+			return features;
+		}
+		for (EStructuralFeature feature: o1.eClass().getEAllStructuralFeatures()) {
+			if (isCompared(feature) && !haveEqualFeature(o1, o2, feature)) {
+				features.add(feature.getName());
+			}
+		}
+		return features;
+	}
+
+	/**
+	 * Features saved in the file of an object
+	 */
+	private static boolean isCompared(EStructuralFeature feature) {
+		return feature.isChangeable() && !feature.isDerived() && !feature.isTransient()
+				&& feature != IArchimatePackage.Literals.FOLDER_CONTAINER__FOLDERS && feature != IArchimatePackage.Literals.FOLDER__ELEMENTS
+				&& !(feature instanceof EReference && ((EReference) feature).isContainer());
+	}
+
+	/**
+	 * Compare a single feature (referenced objects are compared by EcoreUtil.EqualityHelper)
+	 */
+	@SuppressWarnings("unchecked")
+	private static boolean haveEqualFeature(EObject o1, EObject o2, EStructuralFeature feature) {
+		if (o1.eIsSet(feature) != o2.eIsSet(feature)) {
+			return false;
+		}
+		Object value1 = o1.eGet(feature);
+		Object value2 = o2.eGet(feature);
+		if (feature instanceof EReference) {
+			EcoreUtil.EqualityHelper helper = new EcoreUtil.EqualityHelper();
+			return feature.isMany() ? helper.equals((List<EObject>) value1, (List<EObject>) value2)
+					: helper.equals((EObject) value1, (EObject) value2);
+		}
+		return value1 == null ? value2 == null : value1.equals(value2);
+	}
+
+	/**
+	 * Copy the value of a feature (moving contained objects)
+	 */
+	private static void copyFeature(EObject source, EObject target, EStructuralFeature feature) {
+		if (feature.isMany()) {
+			@SuppressWarnings("unchecked")
+			List<Object> targetValues = (List<Object>) target.eGet(feature);
+			@SuppressWarnings("unchecked")
+			List<Object> sourceValues = new ArrayList<Object>((List<Object>) source.eGet(feature));
+			targetValues.clear();
+			targetValues.addAll(sourceValues);
+		} else {
+			target.eSet(feature, source.eGet(feature));
+		}
+	}
+
+	/**
+	 * Objects of a GRAFICO folder, indexed by key, with their content hash
+	 */
+	private class Tree {
+		final File folder;
+		final File modelFolder;
+		boolean sharded;
+		final Map<String, Entry> entries = new HashMap<String, Entry>();
+		// Key of each folder -> its directory
+		final Map<String, File> directories = new HashMap<String, File>();
+		private final Map<Entry, Future<String>> hashes = new HashMap<Entry, Future<String>>();
+
+		Tree(File folder) {
+			this.folder = folder;
+			this.modelFolder = new File(folder, MyExporter.MODEL_FOLDER);
+		}
+
+		/**
+		 * List files and schedule their hashing
+		 */
+		void scan() throws IOException {
+			if (!modelFolder.isDirectory()) {
+				throw new IOException("No GRAFICO model in " + folder); //$NON-NLS-1$
+			}
+			sharded = GraficoLayout.isSharded(modelFolder);
+			scanFolder(modelFolder, null);
+			File imagesFolder = new File(folder, MyExporter.IMAGES_FOLDER);
+			if (imagesFolder.isDirectory()) {
+				scanImages(imagesFolder);
+			}
+		}
+
+		/**
+		 * Wait for hashes
+		 */
+		void await() throws IOException {
+			for (Map.Entry<Entry, Future<String>> hash: hashes.entrySet()) {
+				hash.getKey().hash = WorkerPool.get(hash.getValue());
+			}
+			hashes.clear();
+		}
+
+		private void scanFolder(File directory, String parent) {
+			String key = directory.equals(modelFolder) ? MODEL_KEY : directory.getName();
+			directories.put(key, directory);
+			File folderFile = new File(directory, MyExporter.FOLDER_XML);
+			if (folderFile.isFile()) {
+				add(key, parent, folderFile, key.equals(MODEL_KEY) ? Category.MODEL : Category.FOLDER);
+			}
+			scanElements(directory, key);
+		}
+
+		private void scanElements(File directory, String parent) {
+			File[] files = directory.listFiles();
+			if (files == null) {
+				return;
+			}
+			for (File file: files) {
+				String name = file.getName();
+				if (file.isDirectory()) {
+					if (new File(file, MyExporter.FOLDER_XML).isFile()) {
+						scanFolder(file, parent);
+					} else {
+						// Shard of the folder
+						scanElements(file, parent);
+					}
+				} else if (name.endsWith(".xml") && !name.equals(MyExporter.FOLDER_XML)) { //$NON-NLS-1$
+					add(DeltaImporter.getId(file), parent, file, getCategory(name));
+				}
+			}
+		}
+
+		private void scanImages(File directory) {
+			File[] files = directory.listFiles();
+			if (files == null) {
+				return;
+			}
+			for (File file: files) {
+				if (file.isDirectory()) {
+					scanImages(file);
+				} else {
+					add(folder.toURI().relativize(file.toURI()).getPath(), "", file, Category.IMAGE); //$NON-NLS-1$
+				}
+			}
+		}
+
+		private void add(String key, String parent, final File file, Category category) {
+			Entry entry = new Entry();
+			entry.key = key;
+			entry.parent = parent == null ? "" : parent; //$NON-NLS-1$
+			entry.file = file;
+			entry.path = folder.toURI().relativize(file.toURI()).getPath();
+			entry.category = category;
+			entries.put(key, entry);
+			hashes.put(entry, workerPool.submit(new Callable<String>() {
+				@Override
+				public String call() throws IOException {
+					return ContentHash.of(file);
+				}
+			}));
+		}
+
+		private Category getCategory(String fileName) {
+			String className = fileName.substring(0, Math.max(fileName.indexOf('_'), 0));
+			if (className.endsWith("Relationship")) { //$NON-NLS-1$
+				return Category.RELATIONSHIP;
+			} else if (className.endsWith("Model")) { //$NON-NLS-1$
+				return Category.VIEW;
+			}
+			return Category.ELEMENT;
+		}
+	}
+
+	/**
+	 * A file of a GRAFICO folder
+	 */
+	private static class Entry {
+		String key;
+		// Key of the folder containing the object ("" for the model itself and images)
+		String parent;
+		File file;
+		String path;
+		String hash;
+		Category category;
+	}
+
+	/**
+	 * A change made to an object
+	 */
+	static class Change {
+		String key;
+		Category category;
+		Type type;
+		// Moved to another folder (and modified, unless type is MOVED)
+		boolean moved;
+		// Path of the object in the new (or, if deleted, old) folder
+		String path;
+		// Key of the folder containing the object (unless deleted)
+		String parent;
+		// Names of changed features (only for modified objects)
+		List<String> features;
+
+		private Entry from;
+		private Entry to;
+		private Entry base;
+		private byte[] mergedContent;
+		private List<String> conflictingFeatures;
+	}
+
+	/**
+	 * Changes which can't be merged
+	 */
+	static class Conflict {
+		String key;
+		Category category;
+		String path;
+		String reason;
+		List<String> features;
+	}
+
+	/**
+	 * Result of a diff or merge
+	 */
+	static class ChangeSet {
+		int files;
+		long nanos;
+		List<Change> changes = new ArrayList<Change>();
+		List<Conflict> conflicts = new ArrayList<Conflict>();
+
+		private void addConflict(String key, Category category, String path, String reason, List<String> features) {
+			Conflict conflict = new Conflict();
+			conflict.key = key;
+			conflict.category = category;
+			conflict.path = path;
+			conflict.reason = reason;
+			conflict.features = features;
+			conflicts.add(conflict);
+		}
+
+		boolean hasConflicts() {
+			return !conflicts.isEmpty();
+		}
+
+		/**
+		 * Summary of the change set, listing at most some changes and conflicts
+		 *
+		 * @param max
+		 * @return
+		 */
+		String toString(int max) {
+			// Count changes by category and type
+			Map<Category, int[]> counts = new HashMap<Category, int[]>();
+			for (Change change: changes) {
+				int[] count = counts.get(change.category);
+				if (count == null) {
+					count = new int[Type.values().length];
+					counts.put(change.category, count);
+				}
+				count[change.type.ordinal()]++;
+			}
+
+			StringBuilder sb = new StringBuilder();
+			sb.append(String.format(Locale.ROOT, "%d files indexed in %.2f s, %d change(s), %d conflict(s)\n", files, nanos / 1e9, changes.size(), conflicts.size())); //$NON-NLS-1$
+			for (Category category: Category.values()) {
+				int[] count = counts.get(category);
+				if (count != null) {
+					sb.append(String.format(Locale.ROOT, "%s: %d added, %d deleted, %d modified, %d moved\n", category.name().toLowerCase(Locale.ROOT), //$NON-NLS-1$
+							count[Type.ADDED.ordinal()], count[Type.DELETED.ordinal()], count[Type.MODIFIED.ordinal()], count[Type.MOVED.ordinal()]));
+				}
+			}
+			for (int i = 0; i < Math.min(max, changes.size()); i++) {
+				Change change = changes.get(i);
+				sb.append("  ").append(change.type.name().toLowerCase(Locale.ROOT)).append(' ').append(change.path); //$NON-NLS-1$
+				if (change.features != null && !change.features.isEmpty()) {
+					sb.append(' ').append(change.features);
+				}
+				sb.append('\n');
+			}
+			if (changes.size() > max) {
+				sb.append("  ...\n"); //$NON-NLS-1$
+			}
+			for (int i = 0; i < Math.min(max, conflicts.size()); i++) {
+				Conflict conflict = conflicts.get(i);
+				sb.append("  conflict ").append(conflict.path).append(": ").append(conflict.reason); //$NON-NLS-1$ //$NON-NLS-2$
+				if (conflict.features != null) {
+					sb.append(' ').append(conflict.features);
+				}
+				sb.append('\n');
+			}
+			if (conflicts.size() > max) {
+				sb.append("  ...\n"); //$NON-NLS-1$
+			}
+			return sb.toString();
+		}
+
+		@Override
+		public String toString() {
+			return toString(Integer.MAX_VALUE);
+		}
+
+		/**
+		 * @return the change set as JSON
+		 */
+		String toJson() {
+			StringBuilder sb = new StringBuilder("{\n"); //$NON-NLS-1$
+			sb.append(String.format(Locale.ROOT, "  \"files\": %d,\n  \"ms\": %.1f,\n  \"changes\": [", files, nanos / 1e6)); //$NON-NLS-1$
+			String separator = "\n"; //$NON-NLS-1$
+			for (Change change: changes) {
+				sb.append(separator).append("    {\"id\": ").append(GraficoMetrics.quote(change.key)) //$NON-NLS-1$
+					.append(", \"category\": ").append(GraficoMetrics.quote(change.category.name().toLowerCase(Locale.ROOT))) //$NON-NLS-1$
+					.append(", \"type\": ").append(GraficoMetrics.quote(change.type.name().toLowerCase(Locale.ROOT))) //$NON-NLS-1$
+					.append(", \"moved\": ").append(change.moved) //$NON-NLS-1$
+					.append(", \"path\": ").append(GraficoMetrics.quote(change.path)) //$NON-NLS-1$
+					.append(", \"folder\": ").append(change.parent == null ? "null" : GraficoMetrics.quote(change.parent)) //$NON-NLS-1$ //$NON-NLS-2$
+					.append(", \"features\": ").append(toJson(change.features)).append('}'); //$NON-NLS-1$
+				separator = ",\n"; //$NON-NLS-1$
+			}
+			sb.append("\n  ],\n  \"conflicts\": ["); //$NON-NLS-1$
+			separator = "\n"; //$NON-NLS-1$
+			for (Conflict conflict: conflicts) {
+				sb.append(separator).append("    {\"id\": ").append(GraficoMetrics.quote(conflict.key)) //$NON-NLS-1$
+					.append(", \"category\": ").append(GraficoMetrics.quote(conflict.category.name().toLowerCase(Locale.ROOT))) //$NON-NLS-1$
+					.append(", \"path\": ").append(GraficoMetrics.quote(conflict.path)) //$NON-NLS-1$
+					.append(", \"reason\": ").append(GraficoMetrics.quote(conflict.reason)) //$NON-NLS-1$
+					.append(", \"features\": ").append(toJson(conflict.features)).append('}'); //$NON-NLS-1$
+				separator = ",\n"; //$NON-NLS-1$
+			}
+			sb.append("\n  ]\n}\n"); //$NON-NLS-1$
+			return sb.toString();
+		}
+
+		private static String toJson(List<String> values) {
+			if (values == null) {
+				return "null"; //$NON-NLS-1$
+			}
+			StringBuilder sb = new StringBuilder("["); //$NON-NLS-1$
+			for (int i = 0; i < values.size(); i++) {
+				sb.append(i == 0 ? "" : ", ").append(GraficoMetrics.quote(values.get(i))); //$NON-NLS-1$ //$NON-NLS-2$
+			}
+			return sb.append(']').toString();
+		}
+	}
+}
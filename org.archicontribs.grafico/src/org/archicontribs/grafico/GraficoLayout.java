@@ -0,0 +1,90 @@
+/**
+ * This program and the accompanying materials
+ * are made available under the terms of the License
+ * which accompanies this distribution in the file LICENSE.txt
+ */
+package org.archicontribs.grafico;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Properties;
+
+import org.eclipse.emf.ecore.EObject;
+
+import com.archimatetool.model.IIdentifier;
+
+
+/**
+ * Layout of the files of a GRAFICO model folder.
+ *
+ * In the flat layout (the original one), every element of a folder is saved in the directory of
+ * this folder. In the sharded layout, elements are spread over subdirectories named after a hash
+ * prefix of their id ("00" to "ff"), so that no directory holds tens of thousands of files. As the
+ * shard only depends on the id, an element keeps its path when other elements are added or removed.
+ * Shards never contain a folder.xml, which is how they are told apart from subfolders.
+ *
+ * The sharded layout is recorded in a "grafico.properties" file of the model folder. Both layouts
+ * can always be imported.
+ */
+class GraficoLayout {
+
+	static final String LAYOUT_FILE = "grafico.properties"; //$NON-NLS-1$
+	static final String LAYOUT_KEY = "layout"; //$NON-NLS-1$
+	static final String SHARDED = "sharded"; //$NON-NLS-1$
+
+	/**
+	 * @param modelFolder
+	 * @return true if the model folder uses the sharded layout
+	 * @throws IOException
+	 */
+	static boolean isSharded(File modelFolder) throws IOException {
+		File layoutFile = new File(modelFolder, LAYOUT_FILE);
+		if (!layoutFile.isFile()) {
+			return false;
+		}
+		Properties properties = new Properties();
+		try (InputStream in = Files.newInputStream(layoutFile.toPath())) {
+			properties.load(in);
+		}
+		return SHARDED.equals(properties.getProperty(LAYOUT_KEY));
+	}
+
+	/**
+	 * @return content of the layout file of a sharded model folder
+	 */
+	static byte[] getShardedLayoutFile() {
+		return (LAYOUT_KEY + "=" + SHARDED + "\n").getBytes(StandardCharsets.ISO_8859_1); //$NON-NLS-1$ //$NON-NLS-2$
+	}
+
+	/**
+	 * @param id
+	 * @return name of the shard of an object
+	 */
+	static String getShard(String id) {
+		return String.format("%02x", id.hashCode() & 0xff); //$NON-NLS-1$
+	}
+
+	/**
+	 * @param name
+	 * @return true if a directory with this name can be a shard
+	 */
+	static boolean isShard(String name) {
+		return name.length() == 2 && Character.digit(name.charAt(0), 16) >= 0 && Character.digit(name.charAt(1), 16) >= 0;
+	}
+
+	/**
+	 * File used to save an element or a view of a folder
+	 *
+	 * @param folder directory of the folder
+	 * @param object
+	 * @param sharded
+	 * @return
+	 */
+	static File getFile(File folder, EObject object, boolean sharded) {
+		String fileName = MyExporter.getFileName(object);
+		return sharded ? new File(new File(folder, getShard(((IIdentifier) object).getId())), fileName) : new File(folder, fileName);
+	}
+}
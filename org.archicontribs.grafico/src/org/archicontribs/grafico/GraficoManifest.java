@@ -0,0 +1,317 @@
+/**
+ * This program and the accompanying materials
+ * are made available under the terms of the License
+ * which accompanies this distribution in the file LICENSE.txt
+ */
+package org.archicontribs.grafico;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.eclipse.emf.ecore.EObject;
+
+import com.archimatetool.model.IIdentifier;
+
+
+/**
+ * Manifest of a GRAFICO model folder, written by the exporter in the ".grafico-cache" folder (see
+ * GraficoCache), so that it is never committed nor merged.
+ *
+ * It lists every file of the model (one line per object: id, EClass, path relative to the model
+ * folder, id of the parent folder, position in this folder and content hash, which is the git blob id
+ * of the file, see ContentHash). With it, the importer knows the whole tree before reading any file:
+ * it doesn't have to walk the folder, and can schedule parsing in any order.
+ *
+ * A manifest is only used if it matches the files of the folder (e.g. it may be stale after a pull
+ * or a merge done by git), otherwise the folder is scanned as usual.
+ */
+class GraficoManifest {
+
+	static final String MANIFEST_FILE = "grafico.manifest"; //$NON-NLS-1$
+
+	// Change it each time the format of the manifest changes
+	private static final String HEADER = "# GRAFICO manifest 3"; //$NON-NLS-1$
+
+	private final List<Entry> entries = new ArrayList<Entry>();
+
+	// Built when the manifest is checked against the files of the folder
+	private Entry root;
+	private Map<String, List<Entry>> children;
+
+	/**
+	 * Add an object (on export)
+	 *
+	 * @param object
+	 * @param path path of its file relatively to the model folder
+	 * @param parent folder or model containing this object (null for the model itself)
+	 * @param order position of this object in the folders or elements of its parent
+	 * @return the entry of this object (its hash is set once its file has been written)
+	 */
+	Entry add(EObject object, String path, IIdentifier parent, int order) {
+		Entry entry = new Entry(((IIdentifier) object).getId(), object.eClass().getName(), path,
+				parent == null ? "" : parent.getId(), order, ""); //$NON-NLS-1$ //$NON-NLS-2$
+		entries.add(entry);
+		return entry;
+	}
+
+	/**
+	 * @return entries, in the order they have been added or read
+	 */
+	List<Entry> getEntries() {
+		return entries;
+	}
+
+	/**
+	 * @return content of the manifest file
+	 */
+	byte[] getBytes() {
+		StringBuilder builder = new StringBuilder(HEADER).append('\n');
+		for (Entry entry: entries) {
+			builder.append(entry.id).append('\t').append(entry.eClass).append('\t').append(entry.path).append('\t')
+					.append(entry.parent).append('\t').append(entry.order).append('\t').append(entry.hash).append('\n');
+		}
+		return builder.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Write the manifest of a GRAFICO folder
+	 *
+	 * @param folder GRAFICO folder (containing the model folder)
+	 * @throws IOException
+	 */
+	void write(File folder) throws IOException {
+		File file = getFile(folder);
+		file.getParentFile().mkdirs();
+		GraficoCache.createGitignore(file.getParentFile());
+
+		// Write to a temporary file first, so that an interrupted export doesn't leave a truncated manifest
+		File tmpFile = new File(file.getPath() + ".tmp"); //$NON-NLS-1$
+		Files.write(tmpFile.toPath(), getBytes());
+		Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	/**
+	 * Read the manifest of a GRAFICO folder
+	 *
+	 * @param folder GRAFICO folder (containing the model folder)
+	 * @return the manifest, or null if the folder has none (e.g. it has never been exported here)
+	 * @throws IOException if the manifest can't be read or is invalid
+	 */
+	static GraficoManifest read(File folder) throws IOException {
+		File file = getFile(folder);
+		if (!file.isFile()) {
+			return null;
+		}
+		GraficoManifest manifest = new GraficoManifest();
+		try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+			if (!HEADER.equals(reader.readLine())) {
+				throw new IOException("Unknown manifest format: " + file); //$NON-NLS-1$
+			}
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String[] fields = line.split("\t", -1); //$NON-NLS-1$
+				if (fields.length != 6) {
+					throw new IOException("Invalid manifest line: " + line); //$NON-NLS-1$
+				}
+				try {
+					manifest.entries.add(new Entry(fields[0], fields[1], fields[2], fields[3], Integer.parseInt(fields[4]), fields[5]));
+				} catch (NumberFormatException e) {
+					throw new IOException("Invalid manifest line: " + line, e); //$NON-NLS-1$
+				}
+			}
+		}
+		return manifest;
+	}
+
+	/**
+	 * @param folder GRAFICO folder (containing the model folder)
+	 * @return manifest file of this folder
+	 */
+	static File getFile(File folder) {
+		return new File(new File(folder, GraficoCache.CACHE_FOLDER), MANIFEST_FILE);
+	}
+
+	/**
+	 * Check that the manifest describes a consistent tree, and that it lists exactly the files of the
+	 * model folder (only names of directories are read, files themselves are not).
+	 *
+	 * @param modelFolder
+	 * @param sharded true if the model folder uses the sharded layout (see GraficoLayout)
+	 * @return true if the manifest can be used instead of scanning the folder
+	 */
+	boolean matches(File modelFolder, boolean sharded) {
+		Map<String, Entry> folders = new HashMap<String, Entry>();
+		Set<String> ids = new HashSet<String>();
+		root = null;
+		children = new HashMap<String, List<Entry>>();
+
+		// Every id is used once, and there is a single root (the model)
+		for (Entry entry: entries) {
+			if (!ids.add(entry.id)) {
+				return false;
+			}
+			if (entry.isFolder()) {
+				folders.put(entry.id, entry);
+			}
+			if (entry.parent.isEmpty()) {
+				if (root != null || !entry.path.equals(MyExporter.FOLDER_XML)) {
+					return false;
+				}
+				root = entry;
+			}
+		}
+		if (root == null) {
+			return false;
+		}
+
+		// Each object is in the directory of its parent folder (elements only in folders, not in the model),
+		// and each directory contains exactly the files and directories listed
+		Map<String, Set<String>> directories = new HashMap<String, Set<String>>();
+		directories.put("", new HashSet<String>()); //$NON-NLS-1$
+		for (Entry entry: entries) {
+			if (entry == root) {
+				addPath(directories, entry.path);
+				continue;
+			}
+			Entry parent = folders.get(entry.parent);
+			if (parent == null || (!entry.isFolder() && parent == root)) {
+				return false;
+			}
+			String directory = getParentPath(entry.path);
+			if (entry.isFolder()) {
+				directory = getParentPath(directory);
+			} else if (sharded && getParentPath(directory).equals(parent.getDirectory())
+					&& GraficoLayout.isShard(directory.substring(directory.lastIndexOf('/') + 1))) {
+				directory = getParentPath(directory);
+			}
+			if (!directory.equals(parent.getDirectory())) {
+				return false;
+			}
+			if (!entry.isFolder() && !entry.path.endsWith("_" + entry.id + ".xml")) { //$NON-NLS-1$ //$NON-NLS-2$
+				return false;
+			}
+			addPath(directories, entry.path);
+
+			List<Entry> siblings = children.get(entry.parent);
+			if (siblings == null) {
+				siblings = new ArrayList<Entry>();
+				children.put(entry.parent, siblings);
+			}
+			siblings.add(entry);
+		}
+
+		for (Map.Entry<String, Set<String>> directory: directories.entrySet()) {
+			String[] names = new File(modelFolder, directory.getKey()).list();
+			if (names == null || names.length < directory.getValue().size()) {
+				return false;
+			}
+			for (String name: names) {
+				// The layout file of the model folder itself is not part of the model
+				if (!directory.getValue().contains(name) && !(directory.getKey().isEmpty() && name.equals(GraficoLayout.LAYOUT_FILE))) {
+					return false;
+				}
+			}
+			// Names are unique in a directory: no expected name is missing if there are as many names as expected
+			if (names.length - (directory.getKey().isEmpty() && Arrays.asList(names).contains(GraficoLayout.LAYOUT_FILE) ? 1 : 0) != directory.getValue().size()) {
+				return false;
+			}
+		}
+
+		// Elements first, then folders, each of them in their original order
+		for (List<Entry> siblings: children.values()) {
+			Collections.sort(siblings, new Comparator<Entry>() {
+				@Override
+				public int compare(Entry e1, Entry e2) {
+					int result = Boolean.compare(e1.isFolder(), e2.isFolder());
+					return result != 0 ? result : Integer.compare(e1.order, e2.order);
+				}
+			});
+		}
+		return true;
+	}
+
+	/**
+	 * @return entry of the model itself (once the manifest has been checked)
+	 */
+	Entry getRoot() {
+		return root;
+	}
+
+	/**
+	 * @param entry a folder or the model
+	 * @return entries of the elements of this folder and of its subfolders (once the manifest has been checked)
+	 */
+	List<Entry> getChildren(Entry entry) {
+		List<Entry> list = children.get(entry.id);
+		return list == null ? Collections.<Entry>emptyList() : list;
+	}
+
+	/**
+	 * Record a file and all its parent directories in the names expected in each directory
+	 */
+	private static void addPath(Map<String, Set<String>> directories, String path) {
+		String directory = getParentPath(path);
+		Set<String> names = directories.get(directory);
+		if (names == null) {
+			names = new HashSet<String>();
+			directories.put(directory, names);
+			if (!directory.isEmpty()) {
+				addPath(directories, directory);
+			}
+		}
+		names.add(path.substring(path.lastIndexOf('/') + 1));
+	}
+
+	private static String getParentPath(String path) {
+		int index = path.lastIndexOf('/');
+		return index < 0 ? "" : path.substring(0, index); //$NON-NLS-1$
+	}
+
+	/**
+	 * Object listed in the manifest
+	 */
+	static class Entry {
+		final String id;
+		final String eClass;
+		final String path;
+		final String parent;
+		final int order;
+		String hash;
+
+		Entry(String id, String eClass, String path, String parent, int order, String hash) {
+			this.id = id;
+			this.eClass = eClass;
+			this.path = path;
+			this.parent = parent;
+			this.order = order;
+			this.hash = hash;
+		}
+
+		/**
+		 * @return true if this entry is a folder (or the model)
+		 */
+		boolean isFolder() {
+			return path.equals(MyExporter.FOLDER_XML) || path.endsWith("/" + MyExporter.FOLDER_XML); //$NON-NLS-1$
+		}
+
+		/**
+		 * @return directory of a folder (relatively to the model folder)
+		 */
+		String getDirectory() {
+			return getParentPath(path);
+		}
+	}
+}
@@ -0,0 +1,329 @@
+/**
+ * This program and the accompanying materials
+ * are made available under the terms of the License
+ * which accompanies this distribution in the file LICENSE.txt
+ */
+package org.archicontribs.grafico;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.jface.dialogs.IDialogConstants;
+import org.eclipse.jface.dialogs.MessageDialog;
+import org.eclipse.swt.SWT;
+import org.eclipse.swt.widgets.FileDialog;
+import org.eclipse.swt.widgets.Shell;
+
+import com.archimatetool.editor.preferences.Preferences;
+
+
+/**
+ * Metrics collected during a GRAFICO import or export: time spent in each phase,
+ * counters (files, bytes, objects...), cumulated time of per-file tasks (which run
+ * concurrently on worker threads), slowest files and warnings.
+ *
+ * When disabled, every method returns immediately (not even the clock is read).
+ * Phases must be recorded from a single thread, everything else can be recorded from any thread.
+ */
+class GraficoMetrics {
+
+	// Preference to use to enable metrics (and show their summary after import and export)
+	static final String PREF_METRICS = "graficoMetrics"; //$NON-NLS-1$
+
+	static final GraficoMetrics DISABLED = new GraficoMetrics(false);
+
+	// Number of slowest files to keep
+	static final int SLOWEST_FILES = 10;
+
+	private final boolean enabled;
+	private final Map<String, Long> phases = new LinkedHashMap<String, Long>();
+	private final ConcurrentMap<String, AtomicLong> counters = new ConcurrentHashMap<String, AtomicLong>();
+	private final ConcurrentMap<String, AtomicLong> times = new ConcurrentHashMap<String, AtomicLong>();
+	private final PriorityQueue<FileTime> slowestFiles = new PriorityQueue<FileTime>(SLOWEST_FILES + 1, new Comparator<FileTime>() {
+		@Override
+		public int compare(FileTime t1, FileTime t2) {
+			return Long.compare(t1.nanos, t2.nanos);
+		}
+	});
+	private final List<String> warnings = Collections.synchronizedList(new ArrayList<String>());
+
+	/**
+	 * Create enabled metrics
+	 */
+	GraficoMetrics() {
+		this(true);
+	}
+
+	private GraficoMetrics(boolean enabled) {
+		this.enabled = enabled;
+	}
+
+	/**
+	 * @return new metrics if enabled in preferences, DISABLED otherwise
+	 */
+	static GraficoMetrics create() {
+		return Preferences.STORE.getBoolean(PREF_METRICS) ? new GraficoMetrics() : DISABLED;
+	}
+
+	boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * @return current time (to be given back to endPhase, addTime or addFileTime), or 0 if disabled
+	 */
+	long start() {
+		return enabled ? System.nanoTime() : 0;
+	}
+
+	/**
+	 * Record the time spent in a phase
+	 *
+	 * @param phase
+	 * @param start
+	 * @return the end of this phase (i.e. the start of the next one)
+	 */
+	long endPhase(String phase, long start) {
+		if (!enabled) {
+			return 0;
+		}
+		long end = System.nanoTime();
+		Long total = phases.get(phase);
+		phases.put(phase, (total == null ? 0 : total.longValue()) + end - start);
+		return end;
+	}
+
+	/**
+	 * Add to a counter
+	 *
+	 * @param counter
+	 * @param value
+	 */
+	void count(String counter, long value) {
+		if (enabled) {
+			add(counters, counter, value);
+		}
+	}
+
+	/**
+	 * Add the time spent since start to a cumulated (per-file) time
+	 *
+	 * @param task
+	 * @param start
+	 */
+	void addTime(String task, long start) {
+		if (enabled) {
+			add(times, task, System.nanoTime() - start);
+		}
+	}
+
+	/**
+	 * Record the time spent on a file (only the slowest ones are kept)
+	 *
+	 * @param file
+	 * @param start
+	 */
+	void addFileTime(File file, long start) {
+		if (!enabled) {
+			return;
+		}
+		FileTime fileTime = new FileTime(file, System.nanoTime() - start);
+		synchronized (slowestFiles) {
+			slowestFiles.add(fileTime);
+			if (slowestFiles.size() > SLOWEST_FILES) {
+				slowestFiles.poll();
+			}
+		}
+	}
+
+	/**
+	 * Record a warning (e.g. an unresolved reference)
+	 *
+	 * @param message
+	 */
+	void warning(String message) {
+		if (enabled) {
+			warnings.add(message);
+		}
+	}
+
+	/**
+	 * @return time spent in each phase (in nanoseconds)
+	 */
+	Map<String, Long> getPhaseTimes() {
+		return phases;
+	}
+
+	private static void add(ConcurrentMap<String, AtomicLong> map, String key, long value) {
+		AtomicLong total = map.get(key);
+		if (total == null) {
+			AtomicLong newTotal = new AtomicLong();
+			total = map.putIfAbsent(key, newTotal);
+			if (total == null) {
+				total = newTotal;
+			}
+		}
+		total.addAndGet(value);
+	}
+
+	/**
+	 * @return slowest files, slowest first
+	 */
+	private List<FileTime> getSlowestFiles() {
+		List<FileTime> files;
+		synchronized (slowestFiles) {
+			files = new ArrayList<FileTime>(slowestFiles);
+		}
+		Collections.sort(files, Collections.reverseOrder(slowestFiles.comparator()));
+		return files;
+	}
+
+	/**
+	 * @return a human readable summary
+	 */
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		for (Map.Entry<String, Long> phase: phases.entrySet()) {
+			sb.append(String.format(Locale.ROOT, "%s: %.1f ms%n", phase.getKey(), phase.getValue() / 1e6)); //$NON-NLS-1$
+		}
+		for (Map.Entry<String, AtomicLong> time: times.entrySet()) {
+			sb.append(String.format(Locale.ROOT, "%s (all threads): %.1f ms%n", time.getKey(), time.getValue().get() / 1e6)); //$NON-NLS-1$
+		}
+		for (Map.Entry<String, AtomicLong> counter: counters.entrySet()) {
+			sb.append(String.format(Locale.ROOT, "%s: %d%n", counter.getKey(), counter.getValue().get())); //$NON-NLS-1$
+		}
+		for (FileTime fileTime: getSlowestFiles()) {
+			sb.append(String.format(Locale.ROOT, "%.1f ms: %s%n", fileTime.nanos / 1e6, fileTime.file.getName())); //$NON-NLS-1$
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * @return metrics as a JSON object (times are in milliseconds)
+	 */
+	String toJson() {
+		StringBuilder sb = new StringBuilder("{\n  \"phases\": {"); //$NON-NLS-1$
+		String separator = "\n    "; //$NON-NLS-1$
+		for (Map.Entry<String, Long> phase: phases.entrySet()) {
+			sb.append(separator).append(quote(phase.getKey())).append(String.format(Locale.ROOT, ": %.3f", phase.getValue() / 1e6)); //$NON-NLS-1$
+			separator = ",\n    "; //$NON-NLS-1$
+		}
+		sb.append("\n  },\n  \"times\": {"); //$NON-NLS-1$
+		separator = "\n    "; //$NON-NLS-1$
+		for (Map.Entry<String, AtomicLong> time: times.entrySet()) {
+			sb.append(separator).append(quote(time.getKey())).append(String.format(Locale.ROOT, ": %.3f", time.getValue().get() / 1e6)); //$NON-NLS-1$
+			separator = ",\n    "; //$NON-NLS-1$
+		}
+		sb.append("\n  },\n  \"counters\": {"); //$NON-NLS-1$
+		separator = "\n    "; //$NON-NLS-1$
+		for (Map.Entry<String, AtomicLong> counter: counters.entrySet()) {
+			sb.append(separator).append(quote(counter.getKey())).append(": ").append(counter.getValue().get()); //$NON-NLS-1$
+			separator = ",\n    "; //$NON-NLS-1$
+		}
+		sb.append("\n  },\n  \"slowestFiles\": ["); //$NON-NLS-1$
+		separator = "\n    "; //$NON-NLS-1$
+		for (FileTime fileTime: getSlowestFiles()) {
+			sb.append(separator).append("{\"file\": ").append(quote(fileTime.file.getPath())) //$NON-NLS-1$
+				.append(String.format(Locale.ROOT, ", \"time\": %.3f}", fileTime.nanos / 1e6)); //$NON-NLS-1$
+			separator = ",\n    "; //$NON-NLS-1$
+		}
+		sb.append("\n  ],\n  \"warnings\": ["); //$NON-NLS-1$
+		separator = "\n    "; //$NON-NLS-1$
+		synchronized (warnings) {
+			for (String warning: warnings) {
+				sb.append(separator).append(quote(warning));
+				separator = ",\n    "; //$NON-NLS-1$
+			}
+		}
+		sb.append("\n  ]\n}\n"); //$NON-NLS-1$
+		return sb.toString();
+	}
+
+	/**
+	 * Write metrics as JSON to a file
+	 *
+	 * @param file
+	 * @throws IOException
+	 */
+	void writeJson(File file) throws IOException {
+		try (Writer writer = new OutputStreamWriter(Files.newOutputStream(file.toPath()), StandardCharsets.UTF_8)) {
+			writer.write(toJson());
+		}
+	}
+
+	/**
+	 * Show the summary of these metrics, from which they can also be saved as JSON.
+	 * Must be called from the UI thread.
+	 *
+	 * @param shell
+	 * @param title
+	 */
+	void showSummary(Shell shell, String title) {
+		MessageDialog dialog = new MessageDialog(shell, title, null, toString(), MessageDialog.INFORMATION,
+				new String[] { IDialogConstants.OK_LABEL, Messages.GraficoMetrics_0 }, 0);
+		if (dialog.open() != 1) {
+			return;
+		}
+		FileDialog fileDialog = new FileDialog(shell, SWT.SAVE);
+		fileDialog.setText(title);
+		fileDialog.setFilterExtensions(new String[] { "*.json" }); //$NON-NLS-1$
+		fileDialog.setFileName("grafico-metrics.json"); //$NON-NLS-1$
+		fileDialog.setOverwrite(true);
+		String path = fileDialog.open();
+		if (path == null) {
+			return;
+		}
+		try {
+			writeJson(new File(path));
+		} catch (IOException e) {
+			MessageDialog.openError(shell, title, String.format(Messages.GraficoMetrics_1, path) + "\n" + e.getMessage()); //$NON-NLS-1$
+		}
+	}
+
+	/**
+	 * Quote and escape a JSON string
+	 */
+	static String quote(String s) {
+		StringBuilder sb = new StringBuilder("\""); //$NON-NLS-1$
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c == '"' || c == '\\') {
+				sb.append('\\').append(c);
+			} else if (c < 0x20) {
+				sb.append(String.format("\\u%04x", (int) c)); //$NON-NLS-1$
+			} else {
+				sb.append(c);
+			}
+		}
+		return sb.append('"').toString();
+	}
+
+	/**
+	 * Time spent on a file
+	 */
+	private static class FileTime {
+		File file;
+		long nanos;
+
+		FileTime(File file, long nanos) {
+			this.file = file;
+			this.nanos = nanos;
+		}
+	}
+}
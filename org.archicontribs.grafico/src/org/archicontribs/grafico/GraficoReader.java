@@ -0,0 +1,104 @@
+/**
+ * This program and the accompanying materials
+ * are made available under the terms of the License
+ * which accompanies this distribution in the file LICENSE.txt
+ */
+package org.archicontribs.grafico;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.eclipse.emf.common.util.URI;
+import org.eclipse.emf.ecore.EObject;
+import org.eclipse.emf.ecore.xmi.XMLParserPool;
+import org.eclipse.emf.ecore.xmi.XMLResource;
+import org.eclipse.emf.ecore.xmi.impl.XMLParserPoolImpl;
+import org.eclipse.emf.ecore.xmi.impl.XMLResourceImpl;
+
+
+/**
+ * Reusable loader of GRAFICO files.
+ *
+ * Instead of creating a Resource in a ResourceSet for each file (and keeping all of them
+ * until the end of the import), a reader keeps a single Resource and reuses it for every file:
+ * loaded objects are detached from it as soon as they are parsed. Parsers come from a shared
+ * pool, XML names to features lookups are cached and files are read through a reusable buffer.
+ * Files are never memory-mapped: a mapped file stays locked on Windows until the mapping is
+ * garbage collected. A reader is not thread safe: each worker thread has to use its own one.
+ */
+class GraficoReader {
+
+	// Parsers (and their configuration) are shared by all readers
+	private static final XMLParserPool PARSER_POOL = new XMLParserPoolImpl();
+
+	private final XMLResource resource = new XMLResourceImpl();
+	private final Map<Object, Object> loadOptions = new HashMap<Object, Object>();
+	private byte[] buffer = new byte[16 * 1024];
+
+	GraficoReader() {
+		loadOptions.put(XMLResource.OPTION_USE_PARSER_POOL, PARSER_POOL);
+		loadOptions.put(XMLResource.OPTION_USE_XML_NAME_TO_FEATURE_MAP, new HashMap<Object, Object>());
+		loadOptions.put(XMLResource.OPTION_USE_DEPRECATED_METHODS, Boolean.FALSE);
+	}
+
+	/**
+	 * Load the object saved in a file
+	 *
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	EObject load(File file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			long size = channel.size();
+			if (size > Integer.MAX_VALUE) {
+				throw new IOException("File too large: " + file); //$NON-NLS-1$
+			}
+			return load(file, new ByteArrayInputStream(buffer, 0, read(channel, (int) size)));
+		}
+	}
+
+	/**
+	 * Load an object from a stream holding the (possibly modified) content of a file
+	 *
+	 * @param file
+	 * @param in
+	 * @return
+	 * @throws IOException
+	 */
+	EObject load(File file, InputStream in) throws IOException {
+		// Proxies are resolved relatively to the file, as they would be with a Resource per file
+		resource.setURI(URI.createFileURI(file.getAbsolutePath()));
+		try {
+			resource.load(in, loadOptions);
+			return resource.getContents().isEmpty() ? null : resource.getContents().get(0);
+		} finally {
+			// Detach loaded object (so that unload() doesn't turn it into a proxy), then make the resource loadable again
+			resource.getContents().clear();
+			resource.unload();
+		}
+	}
+
+	/**
+	 * Read a channel into the buffer (growing it if needed)
+	 *
+	 * @return number of bytes read
+	 */
+	private int read(FileChannel channel, int size) throws IOException {
+		if (buffer.length < size) {
+			buffer = new byte[Math.max(size, buffer.length * 2)];
+		}
+		ByteBuffer byteBuffer = ByteBuffer.wrap(buffer, 0, size);
+		while (byteBuffer.hasRemaining() && channel.read(byteBuffer) != -1) {
+			// Keep reading
+		}
+		return byteBuffer.position();
+	}
+}
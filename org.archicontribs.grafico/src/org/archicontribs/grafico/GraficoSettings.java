@@ -0,0 +1,59 @@
+/**
+ * This program and the accompanying materials
+ * are made available under the terms of the License
+ * which accompanies this distribution in the file LICENSE.txt
+ */
+package org.archicontribs.grafico;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import com.archimatetool.editor.preferences.Preferences;
+
+
+/**
+ * Settings of a single import or export. Each setting is read from a preference, unless it has been
+ * set for this import or export only (e.g. by the benchmark, which must not change user preferences).
+ */
+class GraficoSettings {
+
+	private final Map<String, Object> values = new HashMap<String, Object>();
+
+	/**
+	 * Use a value instead of a preference
+	 *
+	 * @param preference
+	 * @param value
+	 */
+	void set(String preference, boolean value) {
+		values.put(preference, Boolean.valueOf(value));
+	}
+
+	/**
+	 * Use a value instead of a preference
+	 *
+	 * @param preference
+	 * @param value
+	 */
+	void set(String preference, int value) {
+		values.put(preference, Integer.valueOf(value));
+	}
+
+	/**
+	 * @param preference
+	 * @return value set for this preference, or the preference itself
+	 */
+	boolean getBoolean(String preference) {
+		Object value = values.get(preference);
+		return value instanceof Boolean ? ((Boolean) value).booleanValue() : Preferences.STORE.getBoolean(preference);
+	}
+
+	/**
+	 * @param preference
+	 * @return value set for this preference, or the preference itself
+	 */
+	int getInt(String preference) {
+		Object value = values.get(preference);
+		return value instanceof Integer ? ((Integer) value).intValue() : Preferences.STORE.getInt(preference);
+	}
+}
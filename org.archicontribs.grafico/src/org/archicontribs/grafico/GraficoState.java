@@ -0,0 +1,228 @@
+/**
+ * This program and the accompanying materials
+ * are made available under the terms of the License
+ * which accompanies this distribution in the file LICENSE.txt
+ */
+package org.archicontribs.grafico;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * State of the files of a GRAFICO folder (size, modification time and content hash of each file)
+ * as they were when the folder was last imported, exported or updated. It is used to find files
+ * which have been added, modified or deleted since then (e.g. by a "git pull").
+ *
+ * The state is stored in the (git ignored) cache folder, see GraficoCache.
+ */
+class GraficoState {
+
+	static final String STATE_FILE = "state.bin"; //$NON-NLS-1$
+
+	// Change it each time the format of the state changes
+	private static final int VERSION = 1;
+
+	// Incremented each time a state is saved (by any import, export or update)
+	private static final AtomicLong GENERATION = new AtomicLong();
+
+	private final File folder;
+	private final File stateFile;
+	private Map<String, Entry> entries = new HashMap<String, Entry>();
+
+	/**
+	 * Read the state of a GRAFICO folder (which is empty if it has never been recorded)
+	 *
+	 * @param folder GRAFICO folder (containing the model folder)
+	 */
+	GraficoState(File folder) {
+		this.folder = folder;
+		this.stateFile = new File(new File(folder, GraficoCache.CACHE_FOLDER), STATE_FILE);
+		if (stateFile.isFile()) {
+			try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(stateFile.toPath())))) {
+				if (in.readInt() == VERSION) {
+					int count = in.readInt();
+					for (int i = 0; i < count; i++) {
+						entries.put(in.readUTF(), new Entry(in.readLong(), in.readLong(), in.readUTF()));
+					}
+				}
+			} catch (IOException e) {
+				// Corrupted or truncated state: every file will be seen as added
+				entries.clear();
+			}
+		}
+	}
+
+	/**
+	 * @return true if a state has been recorded for this folder
+	 */
+	boolean exists() {
+		return !entries.isEmpty();
+	}
+
+	/**
+	 * Compare files of the model and images folders with the recorded state, and update this state
+	 * (call save() to keep it). Content hash is only computed for files whose size or modification
+	 * time changed, so a file which has only been touched isn't reported.
+	 *
+	 * @return changes since state was recorded
+	 * @throws IOException
+	 */
+	Changes scan() throws IOException {
+		Changes changes = new Changes();
+		Map<String, Entry> newEntries = new HashMap<String, Entry>();
+		scan(new File(folder, MyExporter.MODEL_FOLDER), newEntries, changes);
+		scan(new File(folder, MyExporter.IMAGES_FOLDER), newEntries, changes);
+		for (String path: entries.keySet()) {
+			if (!newEntries.containsKey(path)) {
+				changes.deleted.add(new File(folder, path));
+			}
+		}
+		entries = newEntries;
+		return changes;
+	}
+
+	private void scan(File directory, Map<String, Entry> newEntries, Changes changes) throws IOException {
+		File[] files = directory.listFiles();
+		if (files == null) {
+			return;
+		}
+		for (File file: files) {
+			if (file.isDirectory()) {
+				scan(file, newEntries, changes);
+				continue;
+			}
+			String path = getPath(file);
+			Entry entry = entries.get(path);
+			long size = file.length();
+			long lastModified = file.lastModified();
+			if (entry != null && entry.size == size && entry.lastModified == lastModified) {
+				newEntries.put(path, entry);
+				continue;
+			}
+			String hash = ContentHash.of(file);
+			newEntries.put(path, new Entry(size, lastModified, hash));
+			if (entry == null) {
+				changes.added.add(file);
+			} else if (!hash.equals(entry.hash)) {
+				changes.modified.add(file);
+			}
+		}
+	}
+
+	/**
+	 * Content hash recorded for a file, as long as this file still has its recorded size and
+	 * modification time (only file attributes are read). Can be called from several threads.
+	 *
+	 * @param file
+	 * @return recorded content hash, or null if the file is unknown or has changed since
+	 */
+	String getHash(File file) {
+		Entry entry = entries.get(getPath(file));
+		if (entry != null && entry.size == file.length() && entry.lastModified == file.lastModified()) {
+			return entry.hash;
+		}
+		return null;
+	}
+
+	/**
+	 * Record the content hash of a file which has just been written (so that next scan doesn't read it again)
+	 *
+	 * @param file
+	 * @param hash
+	 */
+	void put(File file, String hash) {
+		entries.put(getPath(file), new Entry(file.length(), file.lastModified(), hash));
+	}
+
+	/**
+	 * Write the state to disk
+	 *
+	 * @throws IOException
+	 */
+	void save() throws IOException {
+		stateFile.getParentFile().mkdirs();
+		GraficoCache.createGitignore(stateFile.getParentFile());
+
+		// Write to a temporary file first, so that an interrupted save doesn't leave a truncated state
+		File tmpFile = new File(stateFile.getPath() + ".tmp"); //$NON-NLS-1$
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmpFile.toPath())))) {
+			out.writeInt(VERSION);
+			out.writeInt(entries.size());
+			for (Map.Entry<String, Entry> entry: entries.entrySet()) {
+				out.writeUTF(entry.getKey());
+				out.writeLong(entry.getValue().size);
+				out.writeLong(entry.getValue().lastModified);
+				out.writeUTF(entry.getValue().hash);
+			}
+		}
+		Files.move(tmpFile.toPath(), stateFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		GENERATION.incrementAndGet();
+	}
+
+	/**
+	 * @return a number which changes each time a state is saved (used to know whether changes found
+	 * in background are still relevant)
+	 */
+	static long getGeneration() {
+		return GENERATION.get();
+	}
+
+	/**
+	 * Record the current state of a GRAFICO folder (after a full import or export)
+	 *
+	 * @param folder
+	 * @throws IOException
+	 */
+	static void record(File folder) throws IOException {
+		GraficoState state = new GraficoState(folder);
+		state.scan();
+		state.save();
+	}
+
+	/**
+	 * Path of a file relatively to the GRAFICO folder (always using '/')
+	 */
+	private String getPath(File file) {
+		return folder.toURI().relativize(file.toURI()).getPath();
+	}
+
+	/**
+	 * Files added, modified and deleted
+	 */
+	static class Changes {
+		List<File> added = new ArrayList<File>();
+		List<File> modified = new ArrayList<File>();
+		List<File> deleted = new ArrayList<File>();
+
+		boolean isEmpty() {
+			return added.isEmpty() && modified.isEmpty() && deleted.isEmpty();
+		}
+	}
+
+	/**
+	 * Recorded state of a file
+	 */
+	private static class Entry {
+		long size;
+		long lastModified;
+		String hash;
+
+		Entry(long size, long lastModified, String hash) {
+			this.size = size;
+			this.lastModified = lastModified;
+			this.hash = hash;
+		}
+	}
+}
@@ -0,0 +1,535 @@
+/**
+ * This program and the accompanying materials
+ * are made available under the terms of the License
+ * which accompanies this distribution in the file LICENSE.txt
+ */
+package org.archicontribs.grafico;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import com.archimatetool.model.FolderType;
+
+
+/**
+ * Referential integrity checker of a GRAFICO folder.
+ *
+ * Files are scanned in parallel with a streaming parser (no model is built): ids defined in each
+ * file, references to other files ("href") and to objects of the same file (connections), and
+ * images used are indexed. The indexes are then merged to report, with their location:
+ * - references to ids which are not defined (dangling references),
+ * - ids defined more than once,
+ * - files which the importer would not read (orphan files, including unused images) and files
+ *   whose name doesn't match the id they contain,
+ * - images used but missing, and files which can't be parsed.
+ *
+ * It is used before import (when the graficoValidateBeforeImport preference is set) and
+ * by the "-validate" option of the headless application.
+ */
+class GraficoValidator {
+
+	// Preference to use to check a folder before importing it
+	static final String PREF_VALIDATE_BEFORE_IMPORT = "graficoValidateBeforeImport"; //$NON-NLS-1$
+
+	private static final String ID = "id"; //$NON-NLS-1$
+	private static final String HREF = "href"; //$NON-NLS-1$
+	private static final String IMAGE_PATH = "imagePath"; //$NON-NLS-1$
+	// Attributes of diagram objects and connections referencing objects of the same view
+	private static final String[] LOCAL_REFERENCES = { "source", "target", "targetConnections" }; //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+
+	private static final XMLInputFactory INPUT_FACTORY = XMLInputFactory.newInstance();
+	static {
+		INPUT_FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+		INPUT_FACTORY.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+	}
+
+	/**
+	 * Kinds of problems
+	 */
+	enum Kind {
+		DANGLING_REFERENCE("danglingReferences"), //$NON-NLS-1$
+		DUPLICATE_ID("duplicateIds"), //$NON-NLS-1$
+		ORPHAN_FILE("orphanFiles"), //$NON-NLS-1$
+		MISNAMED_FILE("misnamedFiles"), //$NON-NLS-1$
+		MISSING_IMAGE("missingImages"), //$NON-NLS-1$
+		INVALID_FILE("invalidFiles"); //$NON-NLS-1$
+
+		final String key;
+
+		Kind(String key) {
+			this.key = key;
+		}
+	}
+
+	private final File folder;
+	private final File modelFolder;
+	private final File imagesFolder;
+
+	/**
+	 * @param folder GRAFICO folder (containing the model folder)
+	 */
+	GraficoValidator(File folder) {
+		this.folder = folder;
+		this.modelFolder = new File(folder, MyExporter.MODEL_FOLDER);
+		this.imagesFolder = new File(folder, MyExporter.IMAGES_FOLDER);
+	}
+
+	/**
+	 * Check the folder
+	 *
+	 * @return problems found
+	 * @throws IOException
+	 */
+	Report validate() throws IOException {
+		long start = System.nanoTime();
+		Report report = new Report();
+
+		// Find files to check (and files which would not be imported)
+		List<File> files = new ArrayList<File>();
+		if (modelFolder.isDirectory()) {
+			walkModelFolder(files, report);
+		} else {
+			report.add(Kind.ORPHAN_FILE, null, modelFolder, 0, "No model folder"); //$NON-NLS-1$
+		}
+
+		// Index them in parallel
+		List<FileIndex> indexes = new ArrayList<FileIndex>();
+		WorkerPool workerPool = new WorkerPool(WorkerPool.getThreadCount(MyImporter.PREF_IMPORT_THREADS));
+		try {
+			List<Future<FileIndex>> pending = new ArrayList<Future<FileIndex>>();
+			for (final File file: files) {
+				pending.add(workerPool.submit(new Callable<FileIndex>() {
+					@Override
+					public FileIndex call() {
+						return index(file);
+					}
+				}));
+			}
+			for (Future<FileIndex> future: pending) {
+				indexes.add(WorkerPool.get(future));
+			}
+		} finally {
+			workerPool.shutdown();
+		}
+
+		check(indexes, report);
+		report.files = files.size();
+		report.nanos = System.nanoTime() - start;
+		report.sort();
+		return report;
+	}
+
+	/**
+	 * Find files read by the importer, and report the other ones
+	 */
+	private void walkModelFolder(List<File> files, Report report) throws IOException {
+		boolean sharded = GraficoLayout.isSharded(modelFolder);
+		for (File file: listFiles(modelFolder)) {
+			String name = file.getName();
+			if (file.isDirectory()) {
+				FolderType type = FolderType.get(name);
+				if (type != null && type != FolderType.USER && new File(file, MyExporter.FOLDER_XML).isFile()) {
+					walkFolder(file, sharded, files, report);
+				} else {
+					report.add(Kind.ORPHAN_FILE, null, file, 0, "Directory is not a top level folder"); //$NON-NLS-1$
+				}
+			} else if (name.equals(MyExporter.FOLDER_XML)) {
+				files.add(file);
+			} else if (!name.equals(GraficoLayout.LAYOUT_FILE)) {
+				report.add(Kind.ORPHAN_FILE, null, file, 0, "File is not part of the model"); //$NON-NLS-1$
+			}
+		}
+	}
+
+	private void walkFolder(File directory, boolean sharded, List<File> files, Report report) {
+		for (File file: listFiles(directory)) {
+			if (file.isDirectory()) {
+				if (new File(file, MyExporter.FOLDER_XML).isFile()) {
+					walkFolder(file, sharded, files, report);
+				} else if (sharded && GraficoLayout.isShard(file.getName())) {
+					walkShard(file, files, report);
+				} else {
+					report.add(Kind.ORPHAN_FILE, null, file, 0, "Directory has no folder.xml"); //$NON-NLS-1$
+				}
+			} else {
+				addModelFile(file, files, report);
+			}
+		}
+	}
+
+	private void walkShard(File directory, List<File> files, Report report) {
+		for (File file: listFiles(directory)) {
+			if (file.isDirectory()) {
+				report.add(Kind.ORPHAN_FILE, null, file, 0, "Directory inside a shard"); //$NON-NLS-1$
+			} else {
+				addModelFile(file, files, report);
+			}
+		}
+	}
+
+	private void addModelFile(File file, List<File> files, Report report) {
+		if (file.getName().endsWith(".xml")) { //$NON-NLS-1$
+			files.add(file);
+		} else {
+			report.add(Kind.ORPHAN_FILE, null, file, 0, "File is not part of the model"); //$NON-NLS-1$
+		}
+	}
+
+	private static File[] listFiles(File directory) {
+		File[] files = directory.listFiles();
+		return files == null ? new File[0] : files;
+	}
+
+	/**
+	 * Index ids and references of a file. Can be called from any worker thread.
+	 *
+	 * @param file
+	 * @return
+	 */
+	private FileIndex index(File file) {
+		FileIndex index = new FileIndex(file);
+		Set<String> localIds = new HashSet<String>();
+		List<Reference> localReferences = new ArrayList<Reference>();
+
+		try (InputStream in = new BufferedInputStream(Files.newInputStream(file.toPath()))) {
+			XMLStreamReader xmlReader = INPUT_FACTORY.createXMLStreamReader(in);
+			try {
+				int depth = 0;
+				while (xmlReader.hasNext()) {
+					int event = xmlReader.next();
+					if (event == XMLStreamConstants.END_ELEMENT) {
+						depth--;
+						continue;
+					}
+					if (event != XMLStreamConstants.START_ELEMENT) {
+						continue;
+					}
+					depth++;
+					int line = xmlReader.getLocation().getLineNumber();
+
+					String id = xmlReader.getAttributeValue(null, ID);
+					if (id != null) {
+						index.ids.add(new Reference(id, line));
+						localIds.add(id);
+						if (depth == 1) {
+							index.rootId = id;
+						}
+					}
+					String href = xmlReader.getAttributeValue(null, HREF);
+					if (href != null) {
+						index.references.add(new Reference(href.substring(href.indexOf('#') + 1), line));
+					}
+					String imagePath = xmlReader.getAttributeValue(null, IMAGE_PATH);
+					if (imagePath != null) {
+						index.imagePaths.add(new Reference(imagePath, line));
+					}
+					if (depth > 1) {
+						for (String attribute: LOCAL_REFERENCES) {
+							String value = xmlReader.getAttributeValue(null, attribute);
+							if (value != null) {
+								for (String localId: value.trim().split("\\s+")) { //$NON-NLS-1$
+									localReferences.add(new Reference(localId, line));
+								}
+							}
+						}
+					}
+				}
+			} finally {
+				xmlReader.close();
+			}
+		} catch (IOException | XMLStreamException e) {
+			index.error = e.toString();
+			return index;
+		}
+
+		// References inside the same file can be checked right away
+		for (Reference reference: localReferences) {
+			if (!reference.id.isEmpty() && !localIds.contains(reference.id)) {
+				index.danglingLocalReferences.add(reference);
+			}
+		}
+		return index;
+	}
+
+	/**
+	 * Ids referenced by a file (through "href"). Can be called from any thread.
+	 *
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	static Set<String> getReferences(File file) throws IOException {
+		Set<String> references = new HashSet<String>();
+		try (InputStream in = new BufferedInputStream(Files.newInputStream(file.toPath()))) {
+			XMLStreamReader xmlReader = INPUT_FACTORY.createXMLStreamReader(in);
+			try {
+				while (xmlReader.hasNext()) {
+					if (xmlReader.next() == XMLStreamConstants.START_ELEMENT) {
+						String href = xmlReader.getAttributeValue(null, HREF);
+						if (href != null) {
+							references.add(href.substring(href.indexOf('#') + 1));
+						}
+					}
+				}
+			} finally {
+				xmlReader.close();
+			}
+		} catch (XMLStreamException e) {
+			throw new IOException("Unable to read " + file, e); //$NON-NLS-1$
+		}
+		return references;
+	}
+
+	/**
+	 * Merge indexes of all files and report problems
+	 */
+	private void check(List<FileIndex> indexes, Report report) {
+		// Every defined id, with the file defining it
+		Map<String, FileIndex> definitions = new HashMap<String, FileIndex>();
+		Map<String, Reference> imagePaths = new HashMap<String, Reference>();
+		Map<String, FileIndex> imageUsers = new HashMap<String, FileIndex>();
+
+		for (FileIndex index: indexes) {
+			if (index.error != null) {
+				report.add(Kind.INVALID_FILE, null, index.file, 0, index.error);
+				continue;
+			}
+			for (Reference id: index.ids) {
+				FileIndex other = definitions.put(id.id, index);
+				if (other != null) {
+					report.add(Kind.DUPLICATE_ID, id.id, index.file, id.line, "Id is also defined in " + other.file); //$NON-NLS-1$
+				}
+			}
+			checkFileName(index, report);
+			for (Reference imagePath: index.imagePaths) {
+				if (!imagePaths.containsKey(imagePath.id)) {
+					imagePaths.put(imagePath.id, imagePath);
+					imageUsers.put(imagePath.id, index);
+				}
+			}
+			for (Reference reference: index.danglingLocalReferences) {
+				report.add(Kind.DANGLING_REFERENCE, reference.id, index.file, reference.line, "Reference to an object which is not in this view"); //$NON-NLS-1$
+			}
+		}
+
+		for (FileIndex index: indexes) {
+			for (Reference reference: index.references) {
+				if (!definitions.containsKey(reference.id)) {
+					report.add(Kind.DANGLING_REFERENCE, reference.id, index.file, reference.line, "Reference to an object which doesn't exist"); //$NON-NLS-1$
+				}
+			}
+		}
+
+		// Images used but missing, and images not used
+		for (Map.Entry<String, Reference> entry: imagePaths.entrySet()) {
+			if (!new File(folder, entry.getKey()).isFile()) {
+				report.add(Kind.MISSING_IMAGE, entry.getKey(), imageUsers.get(entry.getKey()).file, entry.getValue().line, "Image file doesn't exist"); //$NON-NLS-1$
+			}
+		}
+		if (imagesFolder.isDirectory()) {
+			checkImages(imagesFolder, imagePaths.keySet(), report);
+		}
+	}
+
+	/**
+	 * Files are named after the id they contain (folders after their directory, for user folders)
+	 */
+	private void checkFileName(FileIndex index, Report report) {
+		String name = index.file.getName();
+		if (index.rootId == null) {
+			report.add(Kind.INVALID_FILE, null, index.file, 0, "File contains no object"); //$NON-NLS-1$
+		} else if (name.equals(MyExporter.FOLDER_XML)) {
+			File directory = index.file.getParentFile();
+			if (!directory.equals(modelFolder) && FolderType.get(directory.getName()) == null && !directory.getName().equals(index.rootId)) {
+				report.add(Kind.MISNAMED_FILE, index.rootId, index.file, 1, "Folder is saved in directory " + directory.getName()); //$NON-NLS-1$
+			}
+		} else if (!DeltaImporter.getId(index.file).equals(index.rootId)) {
+			report.add(Kind.MISNAMED_FILE, index.rootId, index.file, 1, "File name doesn't match the id it contains"); //$NON-NLS-1$
+		}
+	}
+
+	private void checkImages(File directory, Set<String> imagePaths, Report report) {
+		for (File file: listFiles(directory)) {
+			if (file.isDirectory()) {
+				checkImages(file, imagePaths, report);
+			} else if (!imagePaths.contains(folder.toURI().relativize(file.toURI()).getPath())) {
+				report.add(Kind.ORPHAN_FILE, null, file, 0, "Image is not used by the model"); //$NON-NLS-1$
+			}
+		}
+	}
+
+	/**
+	 * Ids and references found in a file
+	 */
+	private static class FileIndex {
+		File file;
+		String rootId;
+		String error;
+		List<Reference> ids = new ArrayList<Reference>();
+		List<Reference> references = new ArrayList<Reference>();
+		List<Reference> danglingLocalReferences = new ArrayList<Reference>();
+		List<Reference> imagePaths = new ArrayList<Reference>();
+
+		FileIndex(File file) {
+			this.file = file;
+		}
+	}
+
+	/**
+	 * An id (or image path) and the line where it appears
+	 */
+	private static class Reference {
+		String id;
+		int line;
+
+		Reference(String id, int line) {
+			this.id = id;
+			this.line = line;
+		}
+	}
+
+	/**
+	 * A problem and its location
+	 */
+	static class Problem {
+		Kind kind;
+		String id;
+		File file;
+		int line;
+		String message;
+
+		@Override
+		public String toString() {
+			return file + (line > 0 ? ":" + line : "") + ": " + message + (id == null ? "" : " (" + id + ")"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$ //$NON-NLS-5$ //$NON-NLS-6$
+		}
+	}
+
+	/**
+	 * Problems found in a folder, indexed by kind
+	 */
+	static class Report {
+		int files;
+		long nanos;
+		private final Map<Kind, List<Problem>> problems = new EnumMap<Kind, List<Problem>>(Kind.class);
+
+		private void add(Kind kind, String id, File file, int line, String message) {
+			Problem problem = new Problem();
+			problem.kind = kind;
+			problem.id = id;
+			problem.file = file;
+			problem.line = line;
+			problem.message = message;
+			List<Problem> list = problems.get(kind);
+			if (list == null) {
+				list = new ArrayList<Problem>();
+				problems.put(kind, list);
+			}
+			list.add(problem);
+		}
+
+		private void sort() {
+			for (List<Problem> list: problems.values()) {
+				Collections.sort(list, new Comparator<Problem>() {
+					@Override
+					public int compare(Problem p1, Problem p2) {
+						int result = p1.file.compareTo(p2.file);
+						return result != 0 ? result : Integer.compare(p1.line, p2.line);
+					}
+				});
+			}
+		}
+
+		boolean isEmpty() {
+			return problems.isEmpty();
+		}
+
+		/**
+		 * @return number of problems found
+		 */
+		int size() {
+			int size = 0;
+			for (List<Problem> list: problems.values()) {
+				size += list.size();
+			}
+			return size;
+		}
+
+		/**
+		 * @param kind
+		 * @return problems of a kind (empty list if none)
+		 */
+		List<Problem> getProblems(Kind kind) {
+			List<Problem> list = problems.get(kind);
+			return list == null ? Collections.<Problem>emptyList() : list;
+		}
+
+		/**
+		 * Summary of the report, listing at most some problems of each kind
+		 *
+		 * @param max maximum number of problems listed for each kind
+		 * @return
+		 */
+		String toString(int max) {
+			StringBuilder sb = new StringBuilder();
+			sb.append(String.format(Locale.ROOT, "%d files checked in %.2f s, %d problem(s)\n", files, nanos / 1e9, size())); //$NON-NLS-1$
+			for (Map.Entry<Kind, List<Problem>> entry: problems.entrySet()) {
+				List<Problem> list = entry.getValue();
+				sb.append(String.format(Locale.ROOT, "%s: %d\n", entry.getKey().key, list.size())); //$NON-NLS-1$
+				for (int i = 0; i < Math.min(max, list.size()); i++) {
+					sb.append("  ").append(list.get(i)).append('\n'); //$NON-NLS-1$
+				}
+				if (list.size() > max) {
+					sb.append("  ...\n"); //$NON-NLS-1$
+				}
+			}
+			return sb.toString();
+		}
+
+		@Override
+		public String toString() {
+			return toString(Integer.MAX_VALUE);
+		}
+
+		/**
+		 * @return the report as JSON (problems grouped by kind)
+		 */
+		String toJson() {
+			StringBuilder sb = new StringBuilder("{\n"); //$NON-NLS-1$
+			sb.append(String.format(Locale.ROOT, "  \"files\": %d,\n  \"ms\": %.1f,\n  \"problems\": %d", files, nanos / 1e6, size())); //$NON-NLS-1$
+			for (Map.Entry<Kind, List<Problem>> entry: problems.entrySet()) {
+				sb.append(",\n  ").append(GraficoMetrics.quote(entry.getKey().key)).append(": ["); //$NON-NLS-1$ //$NON-NLS-2$
+				String separator = "\n"; //$NON-NLS-1$
+				for (Problem problem: entry.getValue()) {
+					sb.append(separator).append("    {\"file\": ").append(GraficoMetrics.quote(problem.file.getPath())) //$NON-NLS-1$
+						.append(", \"line\": ").append(problem.line) //$NON-NLS-1$
+						.append(", \"id\": ").append(problem.id == null ? "null" : GraficoMetrics.quote(problem.id)) //$NON-NLS-1$ //$NON-NLS-2$
+						.append(", \"message\": ").append(GraficoMetrics.quote(problem.message)).append('}'); //$NON-NLS-1$
+					separator = ",\n"; //$NON-NLS-1$
+				}
+				sb.append("\n  ]"); //$NON-NLS-1$
+			}
+			sb.append("\n}\n"); //$NON-NLS-1$
+			return sb.toString();
+		}
+	}
+}
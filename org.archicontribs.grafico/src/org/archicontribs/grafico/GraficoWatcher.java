@@ -0,0 +1,282 @@
+/**
+ * This program and the accompanying materials
+ * are made available under the terms of the License
+ * which accompanies this distribution in the file LICENSE.txt
+ */
+package org.archicontribs.grafico;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jface.dialogs.ErrorDialog;
+import org.eclipse.jface.dialogs.MessageDialog;
+import org.eclipse.swt.widgets.Display;
+import org.eclipse.ui.IStartup;
+
+import com.archimatetool.editor.model.IEditorModelManager;
+import com.archimatetool.editor.preferences.Preferences;
+import com.archimatetool.model.IArchimateModel;
+
+
+/**
+ * Watch mode: keep the model open in Archi in sync with its GRAFICO folder.
+ *
+ * When the graficoWatch preference is set, the last folder used to import or export a model is
+ * watched. Bursts of file events (e.g. a checkout touching thousands of files) are debounced
+ * into a single update: changed files are found and parsed in background (see DeltaImporter),
+ * and only the update of the model is done from the UI thread. Changes found while the folder
+ * is being imported or exported are dropped, as the state recorded by them already includes these files.
+ * A model with unsaved changes is only updated if the user agrees, as updated objects would lose these
+ * changes. Nothing is applied once watching has stopped.
+ */
+public class GraficoWatcher implements IStartup {
+
+	// Preference to use to enable watch mode
+	static final String PREF_WATCH = "graficoWatch"; //$NON-NLS-1$
+
+	// Changes are applied once no event has been received during this delay...
+	static final long DEBOUNCE_DELAY = 500;
+	// ...or at most after this delay (if events keep coming)
+	static final long MAX_DELAY = 10000;
+
+	// Only one folder is watched at a time
+	private static GraficoWatcher current;
+
+	private final File folder;
+	private final Path modelPath;
+	private final Path imagesPath;
+	private WatchService watchService;
+	private Thread thread;
+	// Set when watching stops, as an update may be in progress
+	private volatile boolean stopped;
+
+	/**
+	 * Used by the workbench to start watching (if enabled) when Archi starts
+	 */
+	public GraficoWatcher() {
+		this(null);
+	}
+
+	private GraficoWatcher(File folder) {
+		this.folder = folder;
+		this.modelPath = folder == null ? null : new File(folder, MyExporter.MODEL_FOLDER).toPath();
+		this.imagesPath = folder == null ? null : new File(folder, MyExporter.IMAGES_FOLDER).toPath();
+	}
+
+	@Override
+	public void earlyStartup() {
+		String path = Preferences.STORE.getString(MyExporter.PREF_LAST_FOLDER);
+		if (path != null && !path.isEmpty()) {
+			watch(new File(path));
+		}
+	}
+
+	/**
+	 * Watch a GRAFICO folder (instead of the one watched until now) if watch mode is enabled,
+	 * or stop watching if it has been disabled.
+	 *
+	 * @param folder
+	 */
+	static synchronized void watch(File folder) {
+		if (!Preferences.STORE.getBoolean(PREF_WATCH)) {
+			stop();
+			return;
+		}
+		if (current != null && current.folder.equals(folder)) {
+			return;
+		}
+		stop();
+
+		GraficoWatcher watcher = new GraficoWatcher(folder);
+		try {
+			watcher.start();
+			current = watcher;
+		} catch (IOException e) {
+			// Folder can't be watched: changes have to be imported by hand
+			watcher.close();
+		}
+	}
+
+	/**
+	 * Stop watching (if a folder is watched)
+	 */
+	static synchronized void stop() {
+		if (current != null) {
+			current.close();
+			current = null;
+		}
+	}
+
+	private void start() throws IOException {
+		watchService = FileSystems.getDefault().newWatchService();
+		folder.toPath().register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE);
+		register(modelPath);
+		register(imagesPath);
+
+		thread = new Thread("GRAFICO watcher") { //$NON-NLS-1$
+			@Override
+			public void run() {
+				try {
+					while (true) {
+						boolean changed = handle(watchService.take());
+
+						// Wait for the end of the burst of events
+						long start = System.currentTimeMillis();
+						WatchKey key;
+						while (System.currentTimeMillis() - start < MAX_DELAY
+								&& (key = watchService.poll(DEBOUNCE_DELAY, TimeUnit.MILLISECONDS)) != null) {
+							changed |= handle(key);
+						}
+
+						if (changed) {
+							update();
+						}
+					}
+				} catch (InterruptedException | ClosedWatchServiceException e) {
+					// Stopped
+				}
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	private void close() {
+		stopped = true;
+		try {
+			if (watchService != null) {
+				watchService.close();
+			}
+		} catch (IOException e) {
+			// Already closed
+		}
+	}
+
+	/**
+	 * Watch a directory and all its subdirectories
+	 *
+	 * @param directory
+	 * @throws IOException
+	 */
+	private void register(Path directory) throws IOException {
+		if (!Files.isDirectory(directory)) {
+			return;
+		}
+		Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+				dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	/**
+	 * Handle events of a watch key (watching new directories)
+	 *
+	 * @param key
+	 * @return true if the model or images folders may have changed
+	 */
+	private boolean handle(WatchKey key) {
+		boolean changed = false;
+		Path directory = (Path) key.watchable();
+		for (WatchEvent<?> event: key.pollEvents()) {
+			if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+				// Some events have been lost, but changes are found by comparing files with the recorded state
+				changed = true;
+				continue;
+			}
+			Path path = directory.resolve((Path) event.context());
+			// Only the model and images folders are watched in the GRAFICO folder
+			if (directory.equals(folder.toPath()) && !path.equals(modelPath) && !path.equals(imagesPath)) {
+				continue;
+			}
+			if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(path)) {
+				try {
+					register(path);
+				} catch (IOException e) {
+					// Deleted meanwhile
+				}
+			}
+			changed = true;
+		}
+		key.reset();
+		return changed;
+	}
+
+	/**
+	 * Find and parse changed files, then apply them to the open model from the UI thread
+	 */
+	private void update() {
+		final long generation = GraficoState.getGeneration();
+		final GraficoState state = new GraficoState(folder);
+		if (!state.exists()) {
+			return;
+		}
+
+		final DeltaImporter importer = new DeltaImporter();
+		try {
+			GraficoState.Changes changes = state.scan();
+			if (changes.isEmpty()) {
+				return;
+			}
+			List<File> changedFiles = new ArrayList<File>(changes.added);
+			changedFiles.addAll(changes.modified);
+			importer.prepare(folder, changedFiles, changes.deleted);
+		} catch (IOException | RuntimeException e) {
+			// Files still being written (or invalid): state isn't saved, so they are read again on next change
+			return;
+		}
+
+		final Display display = Display.getDefault();
+		if (stopped || display.isDisposed()) {
+			return;
+		}
+		display.syncExec(new Runnable() {
+			@Override
+			public void run() {
+				// Watching has stopped, or folder has been imported or exported meanwhile
+				if (stopped || GraficoState.getGeneration() != generation) {
+					return;
+				}
+				IArchimateModel model = importer.getModel();
+				if (model == null) {
+					return;
+				}
+				// State isn't saved if user refuses, so the same changes are proposed again on next change
+				if (IEditorModelManager.INSTANCE.isModelDirty(model) && !MessageDialog.openQuestion(display.getActiveShell(),
+						Messages.DeltaImporter_0, String.format(Messages.GraficoWatcher_0, model.getName(), folder))) {
+					return;
+				}
+				importer.apply();
+				try {
+					state.save();
+				} catch (IOException e) {
+					// Same changes will be applied again
+				}
+
+				// Show warnings and errors (if any)
+				if (importer.getErrors() != null)
+					ErrorDialog.openError(
+							display.getActiveShell(),
+							Messages.DeltaImporter_0,
+							Messages.MyImporter_2,
+							importer.getErrors());
+			}
+		});
+	}
+}
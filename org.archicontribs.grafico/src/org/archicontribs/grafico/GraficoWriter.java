@@ -0,0 +1,104 @@
+/**
+ * This program and the accompanying materials
+ * are made available under the terms of the License
+ * which accompanies this distribution in the file LICENSE.txt
+ */
+package org.archicontribs.grafico;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.eclipse.emf.common.util.URI;
+import org.eclipse.emf.ecore.EObject;
+import org.eclipse.emf.ecore.xmi.XMLResource;
+import org.eclipse.emf.ecore.xmi.impl.XMLResourceImpl;
+
+
+/**
+ * Reusable serializer of GRAFICO files.
+ *
+ * Instead of creating a Resource (and its save options) for each file, a writer keeps a single
+ * Resource, its save options (with a cached lookup table of features) and an output buffer, and
+ * reuses them for every file. The same EMF save code is used, so produced bytes are identical.
+ * A writer is not thread safe: each worker thread has to use its own one.
+ */
+class GraficoWriter {
+
+	private final XMLResource resource = new XMLResourceImpl();
+	private final Map<Object, Object> saveOptions = createSaveOptions();
+	private final Buffer buffer = new Buffer();
+
+	GraficoWriter() {
+		// Reuse feature lookups from one file to the next
+		saveOptions.put(XMLResource.OPTION_USE_CACHED_LOOKUP_TABLE, new ArrayList<Object>());
+	}
+
+	/**
+	 * @return options used to save GRAFICO files
+	 */
+	static Map<Object, Object> createSaveOptions() {
+		Map<Object, Object> options = new HashMap<Object, Object>();
+		// Use UTF-8 and don't start with an XML declaration
+		options.put(XMLResource.OPTION_ENCODING, "UTF-8"); //$NON-NLS-1$
+		options.put(XMLResource.OPTION_DECLARE_XML, Boolean.FALSE);
+		// Make the produced XML easy to read
+		options.put(XMLResource.OPTION_FORMATTED, Boolean.TRUE);
+		options.put(XMLResource.OPTION_LINE_WIDTH, Integer.valueOf(5));
+		// Don't use encoded attribute. Needed to have proper references inside Diagrams
+		options.put(XMLResource.OPTION_USE_ENCODED_ATTRIBUTE_STYLE, Boolean.FALSE);
+		// Use cache
+		options.put(XMLResource.OPTION_CONFIGURATION_CACHE, Boolean.TRUE);
+		return options;
+	}
+
+	/**
+	 * Serialize an object (usually a snapshot) into the buffer of this writer.
+	 * Bytes are available through getBytes() and getLength() until next call.
+	 *
+	 * @param object
+	 * @param file file the object will be written to
+	 * @throws IOException
+	 */
+	void serialize(EObject object, File file) throws IOException {
+		buffer.reset();
+		resource.setURI(URI.createFileURI(file.getAbsolutePath()));
+		resource.getContents().add(object);
+		try {
+			resource.save(buffer, saveOptions);
+		} finally {
+			// Release the object as soon as it is written
+			resource.getContents().clear();
+		}
+	}
+
+	/**
+	 * @return the buffer holding the last serialized object (only the first getLength() bytes are meaningful)
+	 */
+	byte[] getBytes() {
+		return buffer.getBytes();
+	}
+
+	/**
+	 * @return size of the last serialized object
+	 */
+	int getLength() {
+		return buffer.size();
+	}
+
+	/**
+	 * Output stream giving access to its internal array (avoids a copy for each file)
+	 */
+	private static class Buffer extends ByteArrayOutputStream {
+		Buffer() {
+			super(16 * 1024);
+		}
+
+		byte[] getBytes() {
+			return buf;
+		}
+	}
+}
@@ -11,6 +11,18 @@ public class Messages extends NLS {
 
     private static final String BUNDLE_NAME = "org.archicontribs.grafico.messages"; //$NON-NLS-1$
 
+    public static String DeltaImporter_0;
+    public static String DeltaImporter_1;
+    public static String DeltaImporter_2;
+    public static String DeltaImporter_3;
+    public static String DeltaImporter_4;
+    public static String DeltaImporter_5;
+
+    public static String GraficoMetrics_0;
+    public static String GraficoMetrics_1;
+
+    public static String GraficoWatcher_0;
+
     public static String MyExporter_0;
     public static String MyExporter_1;
 
@@ -18,6 +30,16 @@ public class Messages extends NLS {
 
 	public static String MyExporter_4;
 
+	public static String MyExporter_5;
+
+	public static String MyExporter_6;
+
+	public static String MyExporter_7;
+
+	public static String MyExporter_8;
+
+	public static String MyExporter_9;
+
 	public static String MyImporter_0;
 
 	public static String MyImporter_1;
@@ -27,6 +49,7 @@ public class Messages extends NLS {
 	public static String MyImporter_3;
 
 	public static String MyImporter_4;
+	public static String MyImporter_7;
 
     static {
         // initialize resource bundle
@@ -0,0 +1,220 @@
+/**
+ * This program and the accompanying materials
+ * are made available under the terms of the License
+ * which accompanies this distribution in the file LICENSE.txt
+ */
+package org.archicontribs.grafico;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.eclipse.emf.ecore.EClass;
+import org.eclipse.emf.ecore.util.EcoreUtil;
+
+import com.archimatetool.editor.model.IArchiveManager;
+import com.archimatetool.model.FolderType;
+import com.archimatetool.model.IArchimateDiagramModel;
+import com.archimatetool.model.IArchimateElement;
+import com.archimatetool.model.IArchimateFactory;
+import com.archimatetool.model.IArchimateModel;
+import com.archimatetool.model.IArchimatePackage;
+import com.archimatetool.model.IArchimateRelationship;
+import com.archimatetool.model.IDiagramModelArchimateConnection;
+import com.archimatetool.model.IDiagramModelArchimateObject;
+import com.archimatetool.model.IDiagramModelImage;
+import com.archimatetool.model.IFolder;
+import com.archimatetool.model.IIdentifier;
+
+
+/**
+ * Generator of synthetic ArchiMate models, used to benchmark GRAFICO import and export.
+ * Generated models are fully determined by their settings (including the random seed).
+ */
+class ModelGenerator {
+
+	// Element classes used for each folder
+	private static final Map<FolderType, EClass[]> ELEMENT_CLASSES = new EnumMap<FolderType, EClass[]>(FolderType.class);
+	static {
+		ELEMENT_CLASSES.put(FolderType.STRATEGY, new EClass[] { IArchimatePackage.Literals.RESOURCE, IArchimatePackage.Literals.CAPABILITY, IArchimatePackage.Literals.COURSE_OF_ACTION });
+		ELEMENT_CLASSES.put(FolderType.BUSINESS, new EClass[] { IArchimatePackage.Literals.BUSINESS_ACTOR, IArchimatePackage.Literals.BUSINESS_ROLE, IArchimatePackage.Literals.BUSINESS_PROCESS, IArchimatePackage.Literals.BUSINESS_OBJECT });
+		ELEMENT_CLASSES.put(FolderType.APPLICATION, new EClass[] { IArchimatePackage.Literals.APPLICATION_COMPONENT, IArchimatePackage.Literals.APPLICATION_SERVICE, IArchimatePackage.Literals.DATA_OBJECT });
+		ELEMENT_CLASSES.put(FolderType.TECHNOLOGY, new EClass[] { IArchimatePackage.Literals.NODE, IArchimatePackage.Literals.DEVICE, IArchimatePackage.Literals.SYSTEM_SOFTWARE, IArchimatePackage.Literals.ARTIFACT });
+		ELEMENT_CLASSES.put(FolderType.MOTIVATION, new EClass[] { IArchimatePackage.Literals.STAKEHOLDER, IArchimatePackage.Literals.GOAL, IArchimatePackage.Literals.REQUIREMENT });
+		ELEMENT_CLASSES.put(FolderType.IMPLEMENTATION_MIGRATION, new EClass[] { IArchimatePackage.Literals.WORK_PACKAGE, IArchimatePackage.Literals.DELIVERABLE, IArchimatePackage.Literals.PLATEAU });
+		ELEMENT_CLASSES.put(FolderType.OTHER, new EClass[] { IArchimatePackage.Literals.LOCATION, IArchimatePackage.Literals.GROUPING });
+	}
+
+	// Number of elements for each folder type
+	Map<FolderType, Integer> elements = new EnumMap<FolderType, Integer>(FolderType.class);
+	// Number of relationships per element
+	double relationshipDensity = 1.5;
+	// Number of views, and of elements shown on each view
+	int views = 10;
+	int elementsPerView = 50;
+	// Depth of user subfolders, and of nested objects inside views
+	int nestingDepth = 2;
+	// Number and size of embedded images
+	int images = 0;
+	int imageSize = 64 * 1024;
+	long seed = 42;
+
+	private Random random;
+	private int nextId;
+
+	/**
+	 * Create a generator for a model of the given size, spread evenly over all element folders,
+	 * with one view for each 200 elements
+	 *
+	 * @param totalElements
+	 */
+	ModelGenerator(int totalElements) {
+		for (FolderType folderType: ELEMENT_CLASSES.keySet()) {
+			elements.put(folderType, totalElements / ELEMENT_CLASSES.size());
+		}
+		views = Math.max(1, totalElements / 200);
+	}
+
+	IArchimateModel generate() {
+		random = new Random(seed);
+		nextId = 0;
+
+		IArchimateModel model = IArchimateFactory.eINSTANCE.createArchimateModel();
+		model.setDefaults();
+		model.setName("Generated model"); //$NON-NLS-1$
+		setId(model);
+		for (IFolder folder: model.getFolders()) {
+			setId(folder);
+		}
+
+		// Elements
+		List<IArchimateElement> allElements = new ArrayList<IArchimateElement>();
+		for (Map.Entry<FolderType, Integer> entry: elements.entrySet()) {
+			EClass[] eClasses = ELEMENT_CLASSES.get(entry.getKey());
+			List<IFolder> folders = createSubfolders(model.getFolder(entry.getKey()));
+			for (int i = 0; i < entry.getValue(); i++) {
+				IArchimateElement element = (IArchimateElement) create(eClasses[i % eClasses.length]);
+				element.setName("Element " + i); //$NON-NLS-1$
+				folders.get(i % folders.size()).getElements().add(element);
+				allElements.add(element);
+			}
+		}
+
+		// Relationships
+		List<IArchimateRelationship> allRelationships = new ArrayList<IArchimateRelationship>();
+		if (!allElements.isEmpty()) {
+			List<IFolder> folders = createSubfolders(model.getFolder(FolderType.RELATIONS));
+			int count = (int) (allElements.size() * relationshipDensity);
+			for (int i = 0; i < count; i++) {
+				IArchimateRelationship relationship = (IArchimateRelationship) create(IArchimatePackage.Literals.ASSOCIATION_RELATIONSHIP);
+				relationship.setSource(allElements.get(random.nextInt(allElements.size())));
+				relationship.setTarget(allElements.get(random.nextInt(allElements.size())));
+				folders.get(i % folders.size()).getElements().add(relationship);
+				allRelationships.add(relationship);
+			}
+		}
+
+		// Images
+		List<String> imagePaths = new ArrayList<String>();
+		if (images > 0) {
+			IArchiveManager archiveManager = IArchiveManager.FACTORY.createArchiveManager(model);
+			model.setAdapter(IArchiveManager.class, archiveManager);
+			for (int i = 0; i < images; i++) {
+				byte[] bytes = new byte[imageSize];
+				random.nextBytes(bytes);
+				String imagePath = MyExporter.IMAGES_FOLDER + "/generated-" + i + ".png"; //$NON-NLS-1$ //$NON-NLS-2$
+				archiveManager.addByteContentEntry(imagePath, bytes);
+				imagePaths.add(imagePath);
+			}
+		}
+
+		// Views
+		List<IFolder> folders = createSubfolders(model.getFolder(FolderType.DIAGRAMS));
+		for (int i = 0; i < views; i++) {
+			IArchimateDiagramModel view = (IArchimateDiagramModel) setId(IArchimateFactory.eINSTANCE.createArchimateDiagramModel());
+			view.setName("View " + i); //$NON-NLS-1$
+			populateView(view, allRelationships, imagePaths.isEmpty() ? null : imagePaths.get(i % imagePaths.size()));
+			folders.get(i % folders.size()).getElements().add(view);
+		}
+
+		return model;
+	}
+
+	/**
+	 * Create a chain of nested user folders under a folder
+	 *
+	 * @param folder
+	 * @return the folder and all its new subfolders
+	 */
+	private List<IFolder> createSubfolders(IFolder folder) {
+		List<IFolder> folders = new ArrayList<IFolder>();
+		folders.add(folder);
+		for (int depth = 0; depth < nestingDepth; depth++) {
+			IFolder subfolder = (IFolder) setId(IArchimateFactory.eINSTANCE.createFolder());
+			subfolder.setType(FolderType.USER);
+			subfolder.setName("Folder " + depth); //$NON-NLS-1$
+			folders.get(folders.size() - 1).getFolders().add(subfolder);
+			folders.add(subfolder);
+		}
+		return folders;
+	}
+
+	/**
+	 * Show relationships (and their source and target) on a view, nesting some of the objects
+	 *
+	 * @param view
+	 * @param relationships
+	 * @param imagePath
+	 */
+	private void populateView(IArchimateDiagramModel view, List<IArchimateRelationship> relationships, String imagePath) {
+		Map<IArchimateElement, IDiagramModelArchimateObject> objects = new HashMap<IArchimateElement, IDiagramModelArchimateObject>();
+		IDiagramModelArchimateObject parent = null;
+		int depth = 0;
+
+		for (int i = 0; i < elementsPerView / 2 && !relationships.isEmpty(); i++) {
+			IArchimateRelationship relationship = relationships.get(random.nextInt(relationships.size()));
+			IArchimateElement[] ends = { (IArchimateElement) relationship.getSource(), (IArchimateElement) relationship.getTarget() };
+			for (IArchimateElement element: ends) {
+				if (!objects.containsKey(element)) {
+					IDiagramModelArchimateObject object = (IDiagramModelArchimateObject) setId(IArchimateFactory.eINSTANCE.createDiagramModelArchimateObject());
+					object.setArchimateElement(element);
+					object.setBounds(IArchimateFactory.eINSTANCE.createBounds(20 * (objects.size() % 50), 20 * (objects.size() / 50), 120, 55));
+					// Nest objects up to nestingDepth
+					if (parent != null && depth < nestingDepth) {
+						parent.getChildren().add(object);
+						depth++;
+					} else {
+						view.getChildren().add(object);
+						depth = 0;
+					}
+					parent = object;
+					objects.put(element, object);
+				}
+			}
+			if (ends[0] != ends[1]) {
+				IDiagramModelArchimateConnection connection = (IDiagramModelArchimateConnection) setId(IArchimateFactory.eINSTANCE.createDiagramModelArchimateConnection());
+				connection.setArchimateRelationship(relationship);
+				connection.connect(objects.get(ends[0]), objects.get(ends[1]));
+			}
+		}
+
+		if (imagePath != null) {
+			IDiagramModelImage image = (IDiagramModelImage) setId(IArchimateFactory.eINSTANCE.createDiagramModelImage());
+			image.setImagePath(imagePath);
+			image.setBounds(IArchimateFactory.eINSTANCE.createBounds(0, 0, 200, 200));
+			view.getChildren().add(image);
+		}
+	}
+
+	private IIdentifier create(EClass eClass) {
+		return setId((IIdentifier) EcoreUtil.create(eClass));
+	}
+
+	private IIdentifier setId(IIdentifier object) {
+		object.setId("id-" + (nextId++)); //$NON-NLS-1$
+		return object;
+	}
+}
@@ -0,0 +1,98 @@
+/**
+ * This program and the accompanying materials
+ * are made available under the terms of the License
+ * which accompanies this distribution in the file LICENSE.txt
+ */
+package org.archicontribs.grafico;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.eclipse.emf.common.notify.Adapter;
+import org.eclipse.emf.common.notify.Notification;
+import org.eclipse.emf.ecore.EObject;
+import org.eclipse.emf.ecore.util.ECrossReferenceAdapter;
+
+import com.archimatetool.model.IArchimateModel;
+import com.archimatetool.model.IArchimatePackage;
+import com.archimatetool.model.IIdentifier;
+
+
+/**
+ * Index of the objects of an open model by id, and of the objects referencing each of them
+ * (see ECrossReferenceAdapter.getInverseReferences()).
+ *
+ * It is attached to a model the first time changes of its GRAFICO folder are applied to it (see
+ * DeltaImporter), then kept up to date by EMF notifications: objects added to the model, removed
+ * from it, or whose id changes are indexed again, whoever changes them. So next changes are applied
+ * without going through the whole model again.
+ */
+class ModelIndex extends ECrossReferenceAdapter {
+
+	private final Map<String, IIdentifier> objects = new HashMap<String, IIdentifier>();
+
+	/**
+	 * Index of a model, created the first time it is needed. Must be called from the UI thread.
+	 *
+	 * @param model
+	 * @return
+	 */
+	static ModelIndex get(IArchimateModel model) {
+		for (Adapter adapter: model.eAdapters()) {
+			if (adapter instanceof ModelIndex) {
+				return (ModelIndex) adapter;
+			}
+		}
+		ModelIndex index = new ModelIndex();
+		model.eAdapters().add(index);
+		return index;
+	}
+
+	/**
+	 * @return ID -> Object lookup table of the model (kept up to date)
+	 */
+	Map<String, IIdentifier> getObjects() {
+		return Collections.unmodifiableMap(objects);
+	}
+
+	@Override
+	protected boolean resolve() {
+		// Unresolved references (e.g. missing concepts) must not be loaded from files
+		return false;
+	}
+
+	@Override
+	protected void setTarget(EObject target) {
+		super.setTarget(target);
+		if (target instanceof IIdentifier) {
+			objects.put(((IIdentifier) target).getId(), (IIdentifier) target);
+		}
+	}
+
+	@Override
+	protected void unsetTarget(EObject target) {
+		super.unsetTarget(target);
+		if (target instanceof IIdentifier) {
+			remove(((IIdentifier) target).getId(), target);
+		}
+	}
+
+	@Override
+	public void notifyChanged(Notification notification) {
+		super.notifyChanged(notification);
+		if (notification.getFeature() == IArchimatePackage.Literals.IDENTIFIER__ID && notification.getEventType() == Notification.SET) {
+			remove((String) notification.getOldValue(), notification.getNotifier());
+			objects.put((String) notification.getNewValue(), (IIdentifier) notification.getNotifier());
+		}
+	}
+
+	/**
+	 * Remove an object from the lookup table, unless another object with the same id has replaced it
+	 */
+	private void remove(String id, Object object) {
+		if (objects.get(id) == object) {
+			objects.remove(id);
+		}
+	}
+}
@@ -5,23 +5,42 @@
  */
 package org.archicontribs.grafico;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.Files;
-import java.nio.file.Paths;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.MultiStatus;
+import org.eclipse.core.runtime.OperationCanceledException;
+import org.eclipse.core.runtime.Status;
+import org.eclipse.core.runtime.jobs.Job;
 import org.eclipse.emf.common.util.URI;
 import org.eclipse.emf.ecore.EObject;
-import org.eclipse.emf.ecore.resource.Resource;
-import org.eclipse.emf.ecore.resource.ResourceSet;
-import org.eclipse.emf.ecore.resource.impl.ExtensibleURIConverterImpl;
-import org.eclipse.emf.ecore.resource.impl.ResourceSetImpl;
-import org.eclipse.emf.ecore.util.EcoreUtil;
 import org.eclipse.emf.ecore.xmi.XMLResource;
-import org.eclipse.emf.ecore.xmi.impl.XMLResourceFactoryImpl;
+import org.eclipse.emf.ecore.xmi.impl.XMLResourceImpl;
+import org.eclipse.jface.dialogs.ErrorDialog;
 import org.eclipse.jface.dialogs.MessageDialog;
 import org.eclipse.osgi.util.NLS;
 import org.eclipse.swt.widgets.DirectoryDialog;
@@ -50,8 +69,62 @@ import com.archimatetool.editor.preferences.Preferences;
  */
 public class MyExporter implements IModelExporter {
 	
-	// This resourceSet will be recreated for each model export
-	ResourceSet resourceSet;
+	// Files written (or left untouched because unchanged) during this export
+	Set<File> exportedFiles;
+	boolean incremental;
+	
+	// When export can be cancelled, changed files are first written in a staging folder,
+	// and only moved to the GRAFICO folder once all of them have been written
+	File exportFolder;
+	File stagingFolder;
+	Set<File> stagedFiles;
+	IProgressMonitor monitor;
+	
+	// When exporting to a git repository, files become blobs of this repository instead (nothing is written in the folder)
+	GitObjectWriter gitWriter;
+	
+	// Recorded state of the GRAFICO folder: a file whose recorded hash is still valid isn't read again
+	// to know whether it changed, and hashes of written files are recorded once export is done
+	GraficoState state;
+	Map<File, String> writtenHashes;
+	
+	// Images with the same content are written once: other paths of this content are replaced by
+	// the path of the written image in saved objects (see saveImages())
+	Map<String, String> imageAliases;
+	
+	// Every saved object is listed in the manifest of the model folder, with the content hash of its file
+	// (see GraficoManifest)
+	File modelFolder;
+	GraficoManifest manifest;
+	Map<File, String> fileHashes;
+	
+	// Elements are saved in shards of their folder (see GraficoLayout)
+	boolean sharded;
+	Set<File> shardFolders;
+	
+	// Snapshot being taken on the UI thread (objects are then only listed, not saved, see takeSnapshot())
+	ModelSnapshot modelSnapshot;
+	
+	// Files are saved concurrently by a pool of worker threads
+	WorkerPool workerPool;
+	List<Future<Void>> pendingSaves;
+	// Limit the number of snapshots waiting to be saved so that memory stays bounded
+	Semaphore pendingSnapshots;
+	MultiStatus saveErrors;
+	
+	// Each worker thread serializes files with its own reusable writer (unless legacy writer is used)
+	ThreadLocal<GraficoWriter> writer;
+	boolean legacyWriter;
+	
+	// Number of files and bytes produced during last export
+	AtomicLong fileCount = new AtomicLong();
+	AtomicLong byteCount = new AtomicLong();
+	
+	// Metrics of last export
+	GraficoMetrics metrics = GraficoMetrics.DISABLED;
+	
+	// Preferences used by this exporter (some can be set for this exporter only)
+	GraficoSettings settings = new GraficoSettings();
 	
 	// Filename to use for serialization of folder elements
 	static final String FOLDER_XML = "folder.xml";
@@ -60,9 +133,24 @@ public class MyExporter implements IModelExporter {
 	static final String IMAGES_FOLDER = "images";
 	static final String MODEL_FOLDER = "model";
 	
+	// Name of the staging folder (inside the cache folder, see GraficoCache)
+	static final String STAGING_FOLDER = "staging";
+	
 	// Preference to use to keep track of last folder used
 	static final String PREF_LAST_FOLDER = "graficoLastFolder";
 	
+	// Preference to use to only rewrite changed files instead of recreating the whole tree
+	static final String PREF_INCREMENTAL_EXPORT = "graficoIncrementalExport";
+	
+	// Preference to use to set the number of threads used to save files (0 means one per core)
+	static final String PREF_EXPORT_THREADS = "graficoExportThreads";
+	
+	// Preference to use to save each file through its own new Resource (as older versions did)
+	static final String PREF_LEGACY_WRITER = "graficoLegacyWriter";
+	
+	// Preference to use to spread elements of each folder over subdirectories
+	static final String PREF_SHARDED_LAYOUT = "graficoShardedLayout";
+	
     public MyExporter() {
     }
 
@@ -74,33 +162,364 @@ public class MyExporter implements IModelExporter {
             return;
         }
     	
+    	// Take a consistent snapshot of each object and of the images of the model: this is the only part
+    	// of the export which blocks the UI thread, files are serialized and written in background
+    	GraficoMetrics metrics = GraficoMetrics.create();
+    	long start = metrics.start();
+    	ModelSnapshot snapshot = takeSnapshot(model, folder);
+    	Map<String, byte[]> images = collectImages(model);
+    	metrics.endPhase("uiSnapshot", start); //$NON-NLS-1$
+    	
+    	// Files written by the export job must not be imported back in the model
+    	GraficoWatcher.stop();
+    	
+    	Job job = new ExportJob(snapshot, images, folder, metrics);
+    	job.setUser(true);
+    	job.schedule();
+    }
+    
+    /**
+     * Export a model to a GRAFICO folder, without any user interaction.
+     * Files which could not be saved are available afterwards through getErrors().
+     * 
+     * @param model
+     * @param folder
+     * @throws IOException
+     */
+    public void exportModel(IArchimateModel model, File folder) throws IOException {
+    	exportModel(model, folder, GraficoMetrics.create());
+    }
+    
+    /**
+     * Export a model to a GRAFICO folder, recording metrics of this export
+     * 
+     * @param model
+     * @param folder
+     * @param metrics
+     * @throws IOException
+     */
+    void exportModel(IArchimateModel model, File folder, GraficoMetrics metrics) throws IOException {
+    	long start = metrics.start();
+    	Map<String, byte[]> images = collectImages(model);
+    	metrics.endPhase("collectImages", start); //$NON-NLS-1$
+    	exportModel(model, images, folder, metrics, null);
+    }
+    
+    /**
+     * Export a model into a bare git repository, as an export to its working tree followed by "git add -A"
+     * and "git commit" would do, but without writing any file: files are written as blobs (only those
+     * which the repository doesn't have yet), then trees and a commit are created on the current branch.
+     * Files which could not be saved are available afterwards through getErrors(), the branch is then left unchanged.
+     * 
+     * @param model
+     * @param repository a bare git repository
+     * @param message commit message
+     * @param metrics
+     * @return id of the new commit (or of the current one if nothing changed), or null if some files could not be saved
+     * @throws IOException
+     */
+    String exportModelToGit(IArchimateModel model, File repository, String message, GraficoMetrics metrics) throws IOException {
+    	gitWriter = new GitObjectWriter(repository);
+    	try {
+    		long start = metrics.start();
+    		Map<String, byte[]> images = collectImages(model);
+    		metrics.endPhase("collectImages", start); //$NON-NLS-1$
+    		exportModel(model, images, repository, metrics, null);
+    		if (saveErrors != null) {
+    			return null;
+    		}
+    		start = metrics.start();
+    		String commit = gitWriter.commit(message);
+    		metrics.endPhase("commit", start); //$NON-NLS-1$
+    		metrics.count("writtenObjects", gitWriter.getWrittenObjects()); //$NON-NLS-1$
+    		return commit;
+    	} finally {
+    		gitWriter = null;
+    	}
+    }
+    
+    /**
+     * Take a snapshot of each object of a model which is saved in its own file (see SnapshotCopier),
+     * and list them in the manifest. Nothing is written: this only reads the model, so that
+     * files can then be written in background by exportSnapshot(), without any other copy of the model.
+     * 
+     * @param model
+     * @param folder GRAFICO folder the snapshot will be exported to
+     * @return the snapshot
+     */
+    ModelSnapshot takeSnapshot(IArchimateModel model, File folder) {
+    	modelSnapshot = new ModelSnapshot(settings.getBoolean(PREF_SHARDED_LAYOUT));
+    	monitor = null;
+    	sharded = modelSnapshot.sharded;
+    	shardFolders = new HashSet<File>();
+    	manifest = modelSnapshot.manifest;
+    	modelFolder = new File(folder, MODEL_FOLDER);
+    	try {
+    		createAndSaveResourceForFolder(model, modelFolder);
+    		return modelSnapshot;
+    	} finally {
+    		modelSnapshot = null;
+    		shardFolders = null;
+    		manifest = null;
+    	}
+    }
+    
+    /**
+     * Export a model and its images to a GRAFICO folder, recording metrics of this export.
+     * 
+     * @param model
+     * @param images bytes of images, by path (see collectImages())
+     * @param folder
+     * @param metrics
+     * @param monitor progress monitor (or null if export can't be cancelled)
+     * @throws IOException
+     * @throws OperationCanceledException if export has been cancelled
+     */
+    void exportModel(IArchimateModel model, Map<String, byte[]> images, File folder, GraficoMetrics metrics, IProgressMonitor monitor) throws IOException {
+    	exportObjects(model, null, images, folder, metrics, monitor);
+    }
+    
+    /**
+     * Export a snapshot taken by takeSnapshot() and images to a GRAFICO folder, recording metrics of this export.
+     * Objects of the snapshot are released as soon as they are saved.
+     * 
+     * @param snapshot
+     * @param images bytes of images, by path (see collectImages())
+     * @param folder the folder given to takeSnapshot()
+     * @param metrics
+     * @param monitor progress monitor (or null if export can't be cancelled)
+     * @throws IOException
+     * @throws OperationCanceledException if export has been cancelled
+     */
+    void exportSnapshot(ModelSnapshot snapshot, Map<String, byte[]> images, File folder, GraficoMetrics metrics, IProgressMonitor monitor) throws IOException {
+    	exportObjects(null, snapshot, images, folder, metrics, monitor);
+    }
+    
+    /**
+     * Export either a model or a snapshot of a model.
+     * 
+     * If a progress monitor is given, export can be cancelled: files are written in a staging folder and
+     * only moved to the GRAFICO folder once all of them have been written without error, so that the
+     * GRAFICO folder is left unchanged if export is cancelled or fails.
+     */
+    private void exportObjects(IArchimateModel model, ModelSnapshot snapshot, Map<String, byte[]> images, File folder, GraficoMetrics metrics, IProgressMonitor monitor) throws IOException {
+    	this.metrics = metrics;
+    	this.monitor = monitor;
+    	fileCount.set(0);
+    	byteCount.set(0);
+    	incremental = settings.getBoolean(PREF_INCREMENTAL_EXPORT);
+    	legacyWriter = settings.getBoolean(PREF_LEGACY_WRITER);
+    	sharded = snapshot != null ? snapshot.sharded : settings.getBoolean(PREF_SHARDED_LAYOUT);
+    	shardFolders = new HashSet<File>();
+    	writer = new ThreadLocal<GraficoWriter>() {
+    		@Override
+    		protected GraficoWriter initialValue() {
+    			return new GraficoWriter();
+    		}
+    	};
+    	exportedFiles = Collections.newSetFromMap(new ConcurrentHashMap<File, Boolean>());
+    	exportFolder = folder;
+    	state = gitWriter == null ? new GraficoState(folder) : null;
+    	writtenHashes = new ConcurrentHashMap<File, String>();
+    	fileHashes = new ConcurrentHashMap<File, String>();
+    	imageAliases = new HashMap<String, String>();
+    	manifest = snapshot != null ? snapshot.manifest : new GraficoManifest();
+    	GraficoManifest exportedManifest = manifest;
+    	
     	// Define target folders for model and images
-    	// Delete them and re-create them (remark: FileUtils.deleteFolder() does sanity checks)
-    	File modelFolder = new File(folder, MODEL_FOLDER);
-    	FileUtils.deleteFolder(modelFolder);
-    	modelFolder.mkdirs();
+    	// Unless export is incremental or staged, delete them and re-create them (remark: FileUtils.deleteFolder() does sanity checks)
+    	modelFolder = new File(folder, MODEL_FOLDER);
     	File imagesFolder = new File(folder, IMAGES_FOLDER);
-    	FileUtils.deleteFolder(imagesFolder);
-    	imagesFolder.mkdirs();
+    	if (gitWriter != null) {
+    		// Nothing is written in the folder
+    		stagingFolder = null;
+    	} else if (monitor != null) {
+    		File cacheFolder = new File(folder, GraficoCache.CACHE_FOLDER);
+    		stagingFolder = new File(cacheFolder, STAGING_FOLDER);
+    		// Remove what an interrupted export could have left
+    		FileUtils.deleteFolder(stagingFolder);
+    		stagingFolder.mkdirs();
+    		GraficoCache.createGitignore(cacheFolder);
+    		stagedFiles = Collections.newSetFromMap(new ConcurrentHashMap<File, Boolean>());
+    		monitor.beginTask(Messages.MyExporter_8, images.size() + (snapshot != null ? snapshot.objects.size() : countObjects(model)));
+    	} else {
+    		stagingFolder = null;
+    		if (!incremental) {
+    			FileUtils.deleteFolder(modelFolder);
+    			FileUtils.deleteFolder(imagesFolder);
+    		}
+    		modelFolder.mkdirs();
+    		imagesFolder.mkdirs();
+    	}
     	
-    	// Save model images (if any): this has to be done on original model (not a copy)
-    	saveImages(model, imagesFolder.getParentFile());
+    	// Save model images (if any) and create directory structure and save each object
+    	// (the model itself is never modified: each file is written from a snapshot of a single object)
+    	int threads = WorkerPool.getThreadCount(settings.getInt(PREF_EXPORT_THREADS));
+    	workerPool = new WorkerPool(threads);
+    	pendingSaves = new ArrayList<Future<Void>>();
+    	pendingSnapshots = new Semaphore(threads * 4);
+    	saveErrors = null;
+    	long start = metrics.start();
+    	boolean moved = false;
+    	try {
+    		try {
+    			saveImages(images, folder);
+    			waitForPendingSaves();
+    			start = metrics.endPhase("saveImages", start); //$NON-NLS-1$
+    			if (sharded) {
+    				byte[] layout = GraficoLayout.getShardedLayoutFile();
+    				writeFile(new File(modelFolder, GraficoLayout.LAYOUT_FILE), layout, layout.length);
+    			}
+    			if (snapshot != null) {
+    				saveSnapshots(snapshot);
+    			} else {
+    				createAndSaveResourceForFolder(model, modelFolder);
+    			}
+    			waitForPendingSaves();
+    			start = metrics.endPhase("createAndSaveResource", start); //$NON-NLS-1$
+    			// The manifest is written last, once content hashes of all files are known
+    			for (GraficoManifest.Entry entry: manifest.getEntries()) {
+    				String hash = fileHashes.get(new File(modelFolder, entry.path));
+    				if (hash != null) {
+    					entry.hash = hash;
+    				}
+    			}
+    		} finally {
+    			// Files being written (if export has been cancelled or failed) have to be closed before the staging folder can be removed
+    			cancelPendingSaves();
+    			workerPool.shutdown();
+    			writer = null;
+    			shardFolders = null;
+    			manifest = null;
+    			fileHashes = null;
+    		}
+    		
+    		if (stagingFolder != null) {
+    			// Leave the GRAFICO folder unchanged if some files could not be written
+    			if (saveErrors != null) {
+    				return;
+    			}
+    			// From now on, export can't be cancelled anymore
+    			monitor.subTask(Messages.MyExporter_9);
+    			modelFolder.mkdirs();
+    			imagesFolder.mkdirs();
+    			moveStagedFiles();
+    			moved = true;
+    			start = metrics.endPhase("moveStagedFiles", start); //$NON-NLS-1$
+    		}
+    	} finally {
+    		// Whatever stopped the export (cancellation, errors), staged files which have not been moved are discarded
+    		if (stagingFolder != null && !moved) {
+    			deleteStagingFolder();
+    		}
+    	}
     	
-    	// Create ResourceSet
-    	resourceSet = new ResourceSetImpl();
-    	resourceSet.getResourceFactoryRegistry().getExtensionToFactoryMap().put("*", new XMLResourceFactoryImpl()); //$NON-NLS-1$
-    	// Add a URIConverter that will be used to map full filenames to logical names
-    	resourceSet.setURIConverter(new ExtensibleURIConverterImpl());
+    	// Remove files of objects which don't exist anymore
+    	if ((incremental || stagingFolder != null) && gitWriter == null) {
+    		deleteOrphans(modelFolder);
+    		deleteOrphans(imagesFolder);
+    		start = metrics.endPhase("deleteOrphans", start); //$NON-NLS-1$
+    	}
     	
-    	// Now work on a copy
-    	IArchimateModel copy = EcoreUtil.copy(model);
-    	// Create directory structure and prepare all Resources
-    	createAndSaveResourceForFolder(copy, modelFolder);
+    	// Remember files of the folder, so that next export and later changes only deal with changed files
+    	if (gitWriter == null) {
+    		for (Map.Entry<File, String> entry: writtenHashes.entrySet()) {
+    			state.put(entry.getKey(), entry.getValue());
+    		}
+    		state.scan();
+    		state.save();
+    		start = metrics.endPhase("recordState", start); //$NON-NLS-1$
+    		// The manifest is kept next to the state (a git repository gets none, it is only used by local imports)
+    		exportedManifest.write(folder);
+    		metrics.endPhase("writeManifest", start); //$NON-NLS-1$
+    	}
     	
-    	// Now save all Resources
-    	for (Resource resource: resourceSet.getResources()) {
-            resource.save(null);
+    	metrics.count("files", fileCount.get()); //$NON-NLS-1$
+    	metrics.count("bytes", byteCount.get()); //$NON-NLS-1$
+    }
+    
+    /**
+     * @param folderContainer
+     * @return number of files used to save a model or folder (and all its subfolders)
+     */
+    private static int countObjects(IFolderContainer folderContainer) {
+    	int count = 1;
+    	if (folderContainer instanceof IFolder) {
+    		count += ((IFolder) folderContainer).getElements().size();
+    	}
+    	for (IFolder folder: folderContainer.getFolders()) {
+    		count += countObjects(folder);
     	}
+    	return count;
+    }
+    
+    /**
+     * Throw an OperationCanceledException if export has been cancelled
+     */
+    private void checkCanceled() {
+    	if (monitor != null && monitor.isCanceled()) {
+    		throw new OperationCanceledException();
+    	}
+    }
+    
+    /**
+     * Wait for all scheduled files to be saved
+     * 
+     * @throws IOException
+     */
+    private void waitForPendingSaves() throws IOException {
+    	for (Future<Void> future: pendingSaves) {
+    		checkCanceled();
+    		WorkerPool.get(future);
+    	}
+    	pendingSaves.clear();
+    }
+    
+    /**
+     * Cancel scheduled files which are not being saved yet, and wait for the others
+     */
+    private void cancelPendingSaves() {
+    	for (Future<Void> future: pendingSaves) {
+    		future.cancel(false);
+    	}
+    	for (Future<Void> future: pendingSaves) {
+    		if (!future.isCancelled()) {
+    			try {
+    				WorkerPool.get(future);
+    			} catch (IOException | RuntimeException e) {
+    				// Export has failed or has been cancelled anyway
+    			}
+    		}
+    	}
+    	pendingSaves.clear();
+    }
+    
+    /**
+     * @return metrics of last export
+     */
+    GraficoMetrics getMetrics() {
+    	return metrics;
+    }
+    
+    /**
+     * @return files which could not be saved during last export (or null if none)
+     */
+    public MultiStatus getErrors() {
+    	return saveErrors;
+    }
+    
+    /**
+     * @return number of files produced during last export
+     */
+    public long getFileCount() {
+    	return fileCount.get();
+    }
+    
+    /**
+     * @return number of bytes produced during last export
+     */
+    public long getByteCount() {
+    	return byteCount.get();
     }
     
     /**
@@ -109,16 +528,16 @@ public class MyExporter implements IModelExporter {
      * 
      * @param folderContainer Model or folder to work on 
      * @param folder Directory in which to generate files
-     * @throws IOException
      */
-    private void createAndSaveResourceForFolder(IFolderContainer folderContainer, File folder) throws IOException {
+    private void createAndSaveResourceForFolder(IFolderContainer folderContainer, File folder) {
 		// Save each children folders
     	List<IFolder> allFolders = new ArrayList<IFolder>();
     	allFolders.addAll(folderContainer.getFolders());
-		for (IFolder tmpFolder: allFolders) {
+		for (int i = 0; i < allFolders.size(); i++) {
+			IFolder tmpFolder = allFolders.get(i);
 			File tmpFolderFile = new File(folder, getNameFor(tmpFolder));
-			tmpFolderFile.mkdirs();
-			createAndSaveResource(new File(tmpFolderFile, FOLDER_XML), tmpFolder);
+			createDirectory(tmpFolderFile);
+			createAndSaveResource(new File(tmpFolderFile, FOLDER_XML), tmpFolder, folderContainer, i);
 			createAndSaveResourceForFolder(tmpFolder, tmpFolderFile);
 		}		
 		// Save each children elements
@@ -126,15 +545,32 @@ public class MyExporter implements IModelExporter {
     		// Save each children element
 			List<EObject> allElements = new ArrayList<EObject>();
 			allElements.addAll(((IFolder) folderContainer).getElements());
-    		for (EObject tmpElement: allElements) {
-    			createAndSaveResource(new File(folder, tmpElement.getClass().getSimpleName()+"_"+((IIdentifier)tmpElement).getId()+".xml"), tmpElement); //$NON-NLS-1$
+    		for (int i = 0; i < allElements.size(); i++) {
+    			EObject tmpElement = allElements.get(i);
+    			File file = GraficoLayout.getFile(folder, tmpElement, sharded);
+    			if (sharded && shardFolders.add(file.getParentFile())) {
+    				createDirectory(file.getParentFile());
+    			}
+    			createAndSaveResource(file, tmpElement, folderContainer, i);
     		}
 		}
 		if (folderContainer instanceof IArchimateModel) {
-			createAndSaveResource(new File(folder, FOLDER_XML), folderContainer);
+			createAndSaveResource(new File(folder, FOLDER_XML), folderContainer, null, 0);
 		}
     }
     
+    /**
+     * Create a directory of the GRAFICO folder (unless files are staged: directories are then
+     * created when files are moved, or exported to a git repository: there is no directory at all)
+     * 
+     * @param directory
+     */
+    private void createDirectory(File directory) {
+    	if (stagingFolder == null && gitWriter == null && modelSnapshot == null) {
+    		directory.mkdirs();
+    	}
+    }
+    
     /**
      * Generate a proper name for directory creation
      *  
@@ -146,59 +582,408 @@ public class MyExporter implements IModelExporter {
     }
     
     /**
-     * Save the model to Resource
+     * Generate the name of the file used to save an element or a view
+     * 
+     * @param object
+     * @return
+     */
+    static String getFileName(EObject object) {
+    	return object.getClass().getSimpleName()+"_"+((IIdentifier)object).getId()+".xml"; //$NON-NLS-1$ //$NON-NLS-2$
+    }
+    
+    /**
+     * Take a snapshot of the object, list it in the manifest and schedule its saving on the worker pool
+     * (or only keep the snapshot if a snapshot of the whole model is being taken)
      * 
      * @param file
      * @param object
+     * @param parent folder or model containing this object (null for the model itself)
+     * @param order position of this object in the folders or elements of its parent
+     */
+    private void createAndSaveResource(File file, EObject object, IFolderContainer parent, int order) {
+    	checkCanceled();
+    	// List the object in the manifest (paths always use '/', whatever the platform)
+    	String path = modelFolder.toPath().relativize(file.toPath()).toString().replace(File.separatorChar, '/');
+    	manifest.add(object, path, (IIdentifier) parent, order);
+    	
+    	// Take a snapshot of this object only (references to other objects become proxies to their files)
+    	// This has to be done on the calling thread as the model is not thread safe
+    	long start = metrics.start();
+    	EObject snapshot = SnapshotCopier.snapshot(object);
+    	metrics.addTime("snapshot", start); //$NON-NLS-1$
+    	
+    	if (modelSnapshot != null) {
+    		modelSnapshot.objects.put(file, snapshot);
+    	} else {
+    		saveSnapshotLater(file, snapshot);
+    	}
+    }
+    
+    /**
+     * Schedule the saving of each object of a snapshot of the model, releasing them from this snapshot
+     * 
+     * @param snapshot
+     */
+    private void saveSnapshots(ModelSnapshot snapshot) {
+    	for (Iterator<Map.Entry<File, EObject>> iterator = snapshot.objects.entrySet().iterator(); iterator.hasNext();) {
+    		Map.Entry<File, EObject> entry = iterator.next();
+    		checkCanceled();
+    		saveSnapshotLater(entry.getKey(), entry.getValue());
+    		iterator.remove();
+    	}
+    }
+    
+    /**
+     * Schedule the saving of a snapshot on the worker pool
+     * 
+     * @param file
+     * @param snapshot
+     */
+    private void saveSnapshotLater(final File file, final EObject snapshot) {
+    	if (monitor != null) {
+    		monitor.worked(1);
+    	}
+    	pendingSnapshots.acquireUninterruptibly();
+    	pendingSaves.add(workerPool.submit(new Callable<Void>() {
+    		@Override
+    		public Void call() {
+    			try {
+    				saveSnapshot(file, snapshot);
+    			} catch (IOException | RuntimeException e) {
+    				addSaveError(file, e);
+    			} finally {
+    				pendingSnapshots.release();
+    			}
+    			return null;
+    		}
+    	}));
+    }
+    
+    /**
+     * Save a snapshot to its file, then release it. Can be called from any worker thread.
+     * 
+     * @param file
+     * @param snapshot
      * @throws IOException
      */
-    private void createAndSaveResource(File file, EObject object) throws IOException {
-    	// Update the URIConverter
-        // Map the logical name (filename) to the physical name (path+filename)
-    	URI key = file.getName().equals(FOLDER_XML) ? URI.createFileURI(file.getAbsolutePath()) : URI.createFileURI(file.getName());
-    	URI value = URI.createFileURI(file.getAbsolutePath());
-        resourceSet.getURIConverter().getURIMap().put(key, value);
-
+    private void saveSnapshot(File file, EObject snapshot) throws IOException {
+    	if (legacyWriter) {
+    		saveSnapshotToNewResource(file, snapshot);
+    		return;
+    	}
+    	
+    	// Serialize with the reusable writer of this thread, then write straight from its buffer
+    	long start = metrics.start();
+    	replaceImageAliases(snapshot);
+    	GraficoWriter threadWriter = writer.get();
+    	threadWriter.serialize(snapshot, file);
+    	metrics.addTime("serialize", start); //$NON-NLS-1$
+    	writeFile(file, threadWriter.getBytes(), threadWriter.getLength());
+    	metrics.addFileTime(file, start);
+    }
+    
+    /**
+     * Save a snapshot through a new Resource, then release it. Can be called from any worker thread.
+     * 
+     * @param file
+     * @param snapshot
+     * @throws IOException
+     */
+    private void saveSnapshotToNewResource(File file, EObject snapshot) throws IOException {
+    	replaceImageAliases(snapshot);
     	// Create a new resource for selected file and add object to persist
-        XMLResource resource = (XMLResource) resourceSet.createResource(key);
-        // Use UTF-8 and don't start with an XML declaration
-        resource.getDefaultSaveOptions().put(XMLResource.OPTION_ENCODING, "UTF-8"); //$NON-NLS-1$
-        resource.getDefaultSaveOptions().put(XMLResource.OPTION_DECLARE_XML,Boolean.FALSE);
-        // Make the produced XML easy to read
-        resource.getDefaultSaveOptions().put(XMLResource.OPTION_FORMATTED, Boolean.TRUE);
-        resource.getDefaultSaveOptions().put(XMLResource.OPTION_LINE_WIDTH, new Integer(5));
-        // Don't use encoded attribute. Needed to have proper references inside Diagrams
-        resource.getDefaultSaveOptions().put(XMLResource.OPTION_USE_ENCODED_ATTRIBUTE_STYLE,Boolean.FALSE);
-        // Use cache
-        resource.getDefaultSaveOptions().put(XMLResource.OPTION_CONFIGURATION_CACHE,Boolean.TRUE);
+    	// (no ResourceSet is needed: proxies already know the name of the file they point to)
+        XMLResource resource = new XMLResourceImpl(URI.createFileURI(file.getAbsolutePath()));
+        resource.getDefaultSaveOptions().putAll(GraficoWriter.createSaveOptions());
         // Add the object to the resource
-        resource.getContents().add(object);
+        resource.getContents().add(snapshot);
+        
+        saveResource(resource, file);
+        
+        // Release the snapshot as soon as it is written
+        resource.getContents().clear();
     }
     
     /**
-     * Extract and save images used inside a model
+     * Replace paths of duplicate images by the path of the image actually written (see saveImages())
+     * 
+     * @param snapshot
+     */
+    private void replaceImageAliases(EObject snapshot) {
+    	if (imageAliases.isEmpty()) {
+    		return;
+    	}
+    	replaceImageAlias(snapshot);
+    	for (Iterator<EObject> iter = snapshot.eAllContents(); iter.hasNext();) {
+    		replaceImageAlias(iter.next());
+    	}
+    }
+    
+    private void replaceImageAlias(EObject eObject) {
+    	if (eObject instanceof IDiagramModelImageProvider) {
+    		IDiagramModelImageProvider imageProvider = (IDiagramModelImageProvider) eObject;
+    		String path = imageAliases.get(imageProvider.getImagePath());
+    		if (path != null) {
+    			imageProvider.setImagePath(path);
+    		}
+    	}
+    }
+    
+    /**
+     * Keep track of a file which could not be saved
+     * 
+     * @param file
+     * @param e
+     */
+    private synchronized void addSaveError(File file, Exception e) {
+		// Create saveErrors the first time
+		if (saveErrors == null)
+			saveErrors = new MultiStatus("org.archicontribs.grafico", IStatus.ERROR, Messages.MyExporter_6, null); //$NON-NLS-1$
+		// Add an error to the list
+		saveErrors.add(new Status(IStatus.ERROR, "org.archicontribs.grafico", String.format(Messages.MyExporter_7, file.getAbsolutePath()), e)); //$NON-NLS-1$
+    }
+    
+    /**
+     * Serialize a Resource and write it to its file (if content has changed)
+     * 
+     * @param resource
+     * @param file
+     * @throws IOException
+     */
+    private void saveResource(XMLResource resource, File file) throws IOException {
+    	long start = metrics.start();
+    	ByteArrayOutputStream out = new ByteArrayOutputStream();
+    	resource.save(out, resource.getDefaultSaveOptions());
+    	metrics.addTime("serialize", start); //$NON-NLS-1$
+    	writeFile(file, out.toByteArray(), out.size());
+    	metrics.addFileTime(file, start);
+    }
+    
+    /**
+     * Write bytes to a file, unless this file already exists with the same content hash
+     * (this avoids touching files, and so their timestamp, when nothing changed).
+     * The hash of an existing file is taken from the recorded state of the folder, so only
+     * changed files are read (unless no state has ever been recorded for this folder).
+     * 
+     * @param file
+     * @param bytes
+     * @param length number of bytes to write (from the start of the array)
+     * @throws IOException
+     */
+    private void writeFile(File file, byte[] bytes, int length) throws IOException {
+    	writeFile(file, bytes, length, ContentHash.of(bytes, 0, length));
+    }
+    
+    /**
+     * Write bytes whose content hash is already known to a file (see writeFile(File, byte[], int))
+     * 
+     * @param file
+     * @param bytes
+     * @param length number of bytes to write (from the start of the array)
+     * @param hash content hash of these bytes
+     * @throws IOException
+     */
+    private void writeFile(File file, byte[] bytes, int length, String hash) throws IOException {
+    	exportedFiles.add(file);
+    	fileCount.incrementAndGet();
+    	byteCount.addAndGet(length);
+    	long start = metrics.start();
+    	if (fileHashes != null) {
+    		fileHashes.put(file, hash);
+    	}
+    	if (gitWriter != null) {
+    		// The content hash is the blob id: blobs already in the repository are not written again
+    		String path = exportFolder.toPath().relativize(file.toPath()).toString().replace(File.separatorChar, '/');
+    		if (!gitWriter.addFile(path, hash, bytes, length)) {
+    			metrics.count("unchangedFiles", 1); //$NON-NLS-1$
+    		}
+    		metrics.addTime("write", start); //$NON-NLS-1$
+    		return;
+    	}
+    	String existingHash = state.getHash(file);
+    	if (existingHash == null && !state.exists() && file.isFile() && file.length() == length) {
+    		existingHash = ContentHash.of(file);
+    	}
+    	if (hash.equals(existingHash)) {
+    		metrics.count("unchangedFiles", 1); //$NON-NLS-1$
+    		metrics.addTime("write", start); //$NON-NLS-1$
+    		return;
+    	}
+    	writtenHashes.put(file, hash);
+    	// Changed files are written in the staging folder (if any) at the same relative path
+    	File target = file;
+    	if (stagingFolder != null) {
+    		target = getStagedFile(file);
+    		target.getParentFile().mkdirs();
+    		stagedFiles.add(file);
+    	}
+    	// Write directly from the array through a channel
+    	try (FileChannel channel = FileChannel.open(target.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+    		ByteBuffer buffer = ByteBuffer.wrap(bytes, 0, length);
+    		while (buffer.hasRemaining()) {
+    			channel.write(buffer);
+    		}
+    	}
+    	metrics.addTime("write", start); //$NON-NLS-1$
+    }
+    
+    /**
+     * @param file
+     * @return file of the staging folder used to write a file of the GRAFICO folder
+     */
+    private File getStagedFile(File file) {
+    	return new File(stagingFolder, exportFolder.toPath().relativize(file.toPath()).toString());
+    }
+    
+    /**
+     * Remove the staging folder without hiding the error which stopped the export (if it can't be removed,
+     * next export removes it)
+     */
+    private void deleteStagingFolder() {
+    	try {
+    		FileUtils.deleteFolder(stagingFolder);
+    	} catch (IOException e) {
+    		// Ignore
+    	}
+    }
+    
+    /**
+     * Move staged files to the GRAFICO folder (replacing previous versions), then remove the staging folder
+     * 
+     * @throws IOException
+     */
+    private void moveStagedFiles() throws IOException {
+    	for (File file: stagedFiles) {
+    		file.getParentFile().mkdirs();
+    		Path source = getStagedFile(file).toPath();
+    		try {
+    			Files.move(source, file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    		} catch (AtomicMoveNotSupportedException e) {
+    			Files.move(source, file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    		}
+    	}
+    	FileUtils.deleteFolder(stagingFolder);
+    }
+    
+    /**
+     * Delete files which have not been written during this export, and empty directories
      * 
-     * @param fModel
      * @param folder
      * @throws IOException
      */
-    private void saveImages(IArchimateModel fModel, File folder) throws IOException {
-        List<String> added = new ArrayList<String>();
+    private void deleteOrphans(File folder) throws IOException {
+    	for (File file: folder.listFiles()) {
+    		if (file.isDirectory()) {
+    			deleteOrphans(file);
+    			String[] children = file.list();
+    			if (children != null && children.length == 0) {
+    				Files.delete(file.toPath());
+    			}
+    		} else if (!exportedFiles.contains(file)) {
+    			Files.delete(file.toPath());
+    		}
+    	}
+    }
+    
+    /**
+     * Extract images used inside a model. This has to be done on the thread owning the model.
+     * 
+     * @param fModel
+     * @return bytes of each image (or null if not found), by path
+     */
+    static Map<String, byte[]> collectImages(IArchimateModel fModel) {
+        Map<String, byte[]> images = new LinkedHashMap<String, byte[]>();
         IArchiveManager archiveManager = IArchiveManager.FACTORY.createArchiveManager(fModel);
-        byte[] bytes;
         
         for(Iterator<EObject> iter = fModel.eAllContents(); iter.hasNext();) {
             EObject eObject = iter.next();
             if(eObject instanceof IDiagramModelImageProvider) {
                 IDiagramModelImageProvider imageProvider = (IDiagramModelImageProvider)eObject;
                 String imagePath = imageProvider.getImagePath();
-                if(imagePath != null && !added.contains(imagePath)) {
-                	bytes = archiveManager.getBytesFromEntry(imagePath);
-	                Files.write(Paths.get(folder.getAbsolutePath()+File.separator+imagePath), bytes, StandardOpenOption.CREATE);
-	                added.add(imagePath);
+                if(imagePath != null && !images.containsKey(imagePath)) {
+                	images.put(imagePath, archiveManager.getBytesFromEntry(imagePath));
                 }
             }
         }
+        return images;
+    }
+    
+    /**
+     * Save images alone to a GRAFICO folder (without objects, nor deleting other files), so that
+     * this phase of the export can be measured in isolation
+     * 
+     * @param images bytes of images, by path (see collectImages())
+     * @param folder
+     * @throws IOException
+     */
+    void exportImages(Map<String, byte[]> images, File folder) throws IOException {
+    	exportFolder = folder;
+    	exportedFiles = Collections.newSetFromMap(new ConcurrentHashMap<File, Boolean>());
+    	state = new GraficoState(folder);
+    	writtenHashes = new ConcurrentHashMap<File, String>();
+    	imageAliases = new HashMap<String, String>();
+    	new File(folder, IMAGES_FOLDER).mkdirs();
+    	workerPool = new WorkerPool(WorkerPool.getThreadCount(settings.getInt(PREF_EXPORT_THREADS)));
+    	pendingSaves = new ArrayList<Future<Void>>();
+    	saveErrors = null;
+    	try {
+    		saveImages(images, folder);
+    		waitForPendingSaves();
+    	} finally {
+    		workerPool.shutdown();
+    	}
+    }
+    
+    /**
+     * Save images used inside a model. Each distinct content is written once (and only if it changed),
+     * at the first path using it: other paths with the same content become aliases of this one.
+     * Must be called before objects are saved, as aliases are replaced in saved objects.
+     * 
+     * @param images
+     * @param folder
+     */
+    private void saveImages(Map<String, byte[]> images, File folder) {
+    	Map<String, String> pathsByHash = new HashMap<String, String>();
+    	for (Map.Entry<String, byte[]> image: images.entrySet()) {
+    		checkCanceled();
+    		if (monitor != null) {
+    			monitor.worked(1);
+    		}
+    		if (image.getValue() != null) {
+    			String hash = ContentHash.of(image.getValue(), 0, image.getValue().length);
+    			String path = pathsByHash.get(hash);
+    			if (path != null) {
+    				imageAliases.put(image.getKey(), path);
+    				metrics.count("duplicateImages", 1); //$NON-NLS-1$
+    			} else {
+    				pathsByHash.put(hash, image.getKey());
+    				saveImage(new File(folder, image.getKey()), image.getValue(), hash);
+    			}
+    		}
+    	}
+    }
+    
+    /**
+     * Schedule the writing of an image on the worker pool
+     * 
+     * @param file
+     * @param bytes
+     * @param hash content hash of bytes
+     */
+    private void saveImage(final File file, final byte[] bytes, final String hash) {
+    	pendingSaves.add(workerPool.submit(new Callable<Void>() {
+    		@Override
+    		public Void call() {
+    			try {
+    				long start = metrics.start();
+    				writeFile(file, bytes, bytes.length, hash);
+    				metrics.addFileTime(file, start);
+    			} catch (IOException | RuntimeException e) {
+    				addSaveError(file, e);
+    			}
+    			return null;
+    		}
+    	}));
     }
     
     /**
@@ -237,4 +1022,73 @@ public class MyExporter implements IModelExporter {
         
         return folder;
     }
+    
+    /**
+     * Snapshot of a model, taken object by object (see takeSnapshot())
+     */
+    static class ModelSnapshot {
+    	final boolean sharded;
+    	final GraficoManifest manifest = new GraficoManifest();
+    	// Snapshot of each object by file, in saving order
+    	final Map<File, EObject> objects = new LinkedHashMap<File, EObject>();
+    	
+    	ModelSnapshot(boolean sharded) {
+    		this.sharded = sharded;
+    	}
+    }
+    
+    /**
+     * Serialize and write a snapshot of a model in background, then report errors and metrics from the UI thread
+     */
+    private class ExportJob extends Job {
+    	private ModelSnapshot snapshot;
+    	private Map<String, byte[]> images;
+    	private File folder;
+    	private GraficoMetrics jobMetrics;
+    	
+    	ExportJob(ModelSnapshot snapshot, Map<String, byte[]> images, File folder, GraficoMetrics metrics) {
+    		super(Messages.MyExporter_8);
+    		this.snapshot = snapshot;
+    		this.images = images;
+    		this.folder = folder;
+    		this.jobMetrics = metrics;
+    	}
+    	
+    	@Override
+    	protected IStatus run(IProgressMonitor monitor) {
+    		try {
+    			exportSnapshot(snapshot, images, folder, jobMetrics, monitor);
+    		} catch (OperationCanceledException e) {
+    			return Status.CANCEL_STATUS;
+    		} catch (IOException e) {
+    			return new Status(IStatus.ERROR, "org.archicontribs.grafico", Messages.MyExporter_6, e); //$NON-NLS-1$
+    		} finally {
+    			snapshot = null;
+    			images = null;
+    			monitor.done();
+    			GraficoWatcher.watch(folder);
+    		}
+    		
+    		final Display display = Display.getDefault();
+    		if (!display.isDisposed()) {
+    			display.asyncExec(new Runnable() {
+    				@Override
+    				public void run() {
+    					// Show errors (if any)
+    					if (saveErrors != null)
+    						ErrorDialog.openError(
+    								display.getActiveShell(),
+    								Messages.MyExporter_5,
+    								Messages.MyExporter_6,
+    								saveErrors);
+    					
+    					// Show metrics summary (if enabled)
+    					if (metrics.isEnabled())
+    						metrics.showSummary(display.getActiveShell(), Messages.MyExporter_5);
+    				}
+    			});
+    		}
+    		return Status.OK_STATUS;
+    	}
+    }
 }
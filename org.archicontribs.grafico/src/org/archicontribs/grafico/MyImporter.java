@@ -7,12 +7,20 @@ package org.archicontribs.grafico;
 
 import java.io.File;
 import java.io.IOException;
-import java.nio.file.Files;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.ListIterator;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.eclipse.core.runtime.IStatus;
 import org.eclipse.core.runtime.MultiStatus;
@@ -24,6 +32,7 @@ import org.eclipse.emf.ecore.resource.ResourceSet;
 import org.eclipse.emf.ecore.resource.impl.ResourceSetImpl;
 import org.eclipse.emf.ecore.xmi.XMLResource;
 import org.eclipse.emf.ecore.xmi.impl.XMLResourceFactoryImpl;
+import org.eclipse.jface.dialogs.MessageDialog;
 import org.eclipse.swt.widgets.DirectoryDialog;
 import org.eclipse.swt.widgets.Display;
 
@@ -39,8 +48,10 @@ import com.archimatetool.model.IArchimateRelationship;
 import com.archimatetool.model.IDiagramModel;
 import com.archimatetool.model.IDiagramModelArchimateConnection;
 import com.archimatetool.model.IDiagramModelArchimateObject;
+import com.archimatetool.model.IDiagramModelImageProvider;
 import com.archimatetool.model.IDiagramModelReference;
 import com.archimatetool.model.IFolder;
+import com.archimatetool.model.IFolderContainer;
 import com.archimatetool.model.IIdentifier;
 
 
@@ -59,7 +70,38 @@ public class MyImporter implements IModelImporter {
     Map<String, IIdentifier> idLookup;
     MultiStatus resolveErrors;
     
-	ResourceSet resourceSet;
+    // Objects holding proxies and images used by the model, recorded while loading files
+    List<EObject> proxyHolders;
+    Set<String> imagePaths;
+    
+    // Preference to use to set the number of threads used to parse files (0 means one per core)
+    static final String PREF_IMPORT_THREADS = "graficoImportThreads"; //$NON-NLS-1$
+    
+    // Preference to use to load each file through its own Resource in a ResourceSet (as older versions did)
+    static final String PREF_LEGACY_READER = "graficoLegacyReader"; //$NON-NLS-1$
+    
+	// Readers and ResourceSets are not thread safe, so each worker thread uses its own one
+	ThreadLocal<GraficoReader> reader;
+	ThreadLocal<ResourceSet> resourceSet;
+	boolean legacyReader;
+	
+	// Cache of parsed files (null if disabled)
+	GraficoCache cache;
+	
+	WorkerPool workerPool;
+	
+	// Elements of folders are saved in shards (see GraficoLayout)
+	boolean sharded;
+	
+	// Number of files and bytes read during last import
+	AtomicLong fileCount = new AtomicLong();
+	AtomicLong byteCount = new AtomicLong();
+	
+	// Metrics of last import
+	GraficoMetrics metrics = GraficoMetrics.DISABLED;
+	
+	// Preferences used by this importer (some can be set for this importer only)
+	GraficoSettings settings = new GraficoSettings();
 	
     @Override
     public void doImport() throws IOException {
@@ -69,48 +111,191 @@ public class MyImporter implements IModelImporter {
             return;
         }
     	
+    	// Check the folder first (if enabled), and let user decide whether problems found prevent import
+    	if (Preferences.STORE.getBoolean(GraficoValidator.PREF_VALIDATE_BEFORE_IMPORT)) {
+    		GraficoValidator.Report report = new GraficoValidator(folder).validate();
+    		if (!report.isEmpty() && !MessageDialog.openQuestion(Display.getCurrent().getActiveShell(), Messages.MyImporter_1,
+    				String.format(Messages.MyImporter_7, report.toString(5)))) {
+    			return;
+    		}
+    	}
+    	
+    	IArchimateModel model = importModel(folder);
+    	
+    	if(model == null) {
+    		return;
+    	}
+    	
+    	// Open the Model in the Editor
+        IEditorModelManager.INSTANCE.openModel(model);
+        
+        // Remember files of the folder, so that later changes can be imported alone
+        recordState(folder);
+        GraficoWatcher.watch(folder);
+        
+        // Show warnings and errors (if any)
+        if (resolveErrors != null)
+	        org.eclipse.jface.dialogs.ErrorDialog.openError( 	
+	        		Display.getCurrent().getActiveShell(), 	
+	        		Messages.MyImporter_1,
+	        		Messages.MyImporter_2,
+	        		resolveErrors);
+        
+        // Show metrics summary (if enabled)
+        if (metrics.isEnabled())
+        	metrics.showSummary(Display.getCurrent().getActiveShell(), Messages.MyImporter_1);
+    }
+    
+    /**
+     * Record the state of a GRAFICO folder (used by the delta importer).
+     * The import or export itself is not affected if it can't be saved.
+     * 
+     * @param folder
+     */
+    static void recordState(File folder) {
+    	try {
+    		GraficoState.record(folder);
+    	} catch (IOException e) {
+    		// Next delta import will ask for a full import
+    	}
+    }
+    
+    /**
+     * Import a model from a GRAFICO folder, without any user interaction.
+     * Unresolved references are available afterwards through getErrors().
+     * 
+     * @param folder
+     * @return the model, or null if folder doesn't contain a GRAFICO model
+     * @throws IOException
+     */
+    public IArchimateModel importModel(File folder) throws IOException {
+    	return importModel(folder, GraficoMetrics.create());
+    }
+    
+    /**
+     * Import a model from a GRAFICO folder, recording metrics of this import
+     * 
+     * @param folder
+     * @param metrics
+     * @return the model, or null if folder doesn't contain a GRAFICO model
+     * @throws IOException
+     */
+    IArchimateModel importModel(File folder, GraficoMetrics metrics) throws IOException {
+    	this.metrics = metrics;
+    	fileCount.set(0);
+    	byteCount.set(0);
+    	resolveErrors = null;
+    	
     	// Define source folders for model and images
     	File modelFolder = new File(folder, MyExporter.MODEL_FOLDER);
     	File imagesFolder = new File(folder, MyExporter.IMAGES_FOLDER);
     	
     	if (!modelFolder.isDirectory()) {
-    		return;
+    		return null;
     	}
     	
-    	// Create ResourceSet
-    	resourceSet = new ResourceSetImpl();
-    	resourceSet.getResourceFactoryRegistry().getExtensionToFactoryMap().put("*", new XMLResourceFactoryImpl()); //$NON-NLS-1$
+    	// Create one reader (or ResourceSet) per thread
+    	legacyReader = settings.getBoolean(PREF_LEGACY_READER);
+    	reader = new ThreadLocal<GraficoReader>() {
+    		@Override
+    		protected GraficoReader initialValue() {
+    			return new GraficoReader();
+    		}
+    	};
+    	resourceSet = new ThreadLocal<ResourceSet>() {
+    		@Override
+    		protected ResourceSet initialValue() {
+    			ResourceSet set = new ResourceSetImpl();
+    			set.getResourceFactoryRegistry().getExtensionToFactoryMap().put("*", new XMLResourceFactoryImpl()); //$NON-NLS-1$
+    			return set;
+    		}
+    	};
     	
-    	// Reset the ID -> Object lookup table
+    	// Open the cache (if enabled)
+    	long start = metrics.start();
+    	cache = settings.getBoolean(GraficoCache.PREF_IMPORT_CACHE) ? new GraficoCache(folder) : null;
+    	metrics.endPhase("openCache", start); //$NON-NLS-1$
+    	
+    	// Reset the ID -> Object lookup table and the index of proxies
     	idLookup = new HashMap<String, IIdentifier>();
+    	proxyHolders = new ArrayList<EObject>();
+    	imagePaths = new LinkedHashSet<String>();
         // Load the Model from files (it will contain unresolved proxies)
-    	IArchimateModel model = (IArchimateModel) loadModel(modelFolder);
-    	// Remove model from its resource (needed to save it back to a .archimate file)
-    	resourceSet.getResource(URI.createFileURI((new File(modelFolder, MyExporter.FOLDER_XML)).getAbsolutePath()), true).getContents().remove(model);
+    	IArchimateModel model;
+    	workerPool = new WorkerPool(WorkerPool.getThreadCount(settings.getInt(PREF_IMPORT_THREADS)));
+    	try {
+    		model = loadModel(modelFolder);
+    	} finally {
+    		workerPool.shutdown();
+    		reader = null;
+    		resourceSet = null;
+    	}
+    	// Update the cache (a cache which can't be saved only slows down next import)
+    	start = metrics.start();
+    	if (cache != null) {
+    		try {
+    			cache.save();
+    		} catch (IOException e) {
+    			metrics.warning("Unable to save cache: " + e); //$NON-NLS-1$
+    		}
+    		cache = null;
+    	}
+    	start = metrics.endPhase("saveCache", start); //$NON-NLS-1$
     	
     	// Resolve proxies
-    	resolveErrors = null;
-    	resolveProxies(model);
+    	resolveProxies();
+    	start = metrics.endPhase("resolveProxies", start); //$NON-NLS-1$
     	
     	if(imagesFolder.isDirectory()) {
-    		loadImages(model, imagesFolder);
+    		loadImages(model, imagesFolder.getParentFile());
     	}
+    	metrics.endPhase("loadImages", start); //$NON-NLS-1$
     	
-    	// Open the Model in the Editor
-        IEditorModelManager.INSTANCE.openModel(model);
-        
-        // Show warnings and errors (if any)
-        if (resolveErrors != null)
-	        org.eclipse.jface.dialogs.ErrorDialog.openError( 	
-	        		Display.getCurrent().getActiveShell(), 	
-	        		Messages.MyImporter_1,
-	        		Messages.MyImporter_2,
-	        		resolveErrors);
+    	metrics.count("files", fileCount.get()); //$NON-NLS-1$
+    	metrics.count("bytes", byteCount.get()); //$NON-NLS-1$
+    	metrics.count("proxyHolders", proxyHolders.size()); //$NON-NLS-1$
+    	
+    	// Release lookup structures
+    	idLookup = null;
+    	proxyHolders = null;
+    	imagePaths = null;
+    	workerPool = null;
+    	
+    	return model;
     }
     
+    /**
+     * @return metrics of last import
+     */
+    GraficoMetrics getMetrics() {
+    	return metrics;
+    }
+    
+    /**
+     * @return references which could not be resolved during last import (or null if none)
+     */
+    public MultiStatus getErrors() {
+    	return resolveErrors;
+    }
     
     /**
-     * Read images from images subfolder and load them into the model
+     * @return number of files read during last import
+     */
+    public long getFileCount() {
+    	return fileCount.get();
+    }
+    
+    /**
+     * @return number of bytes read during last import
+     */
+    public long getByteCount() {
+    	return byteCount.get();
+    }
+    
+    
+    /**
+     * Read images used by the model from images subfolder and load them into the model.
+     * Images with the same content share the same bytes.
      * 
      * @param fModel
      * @param folder
@@ -118,28 +303,58 @@ public class MyImporter implements IModelImporter {
      */
     private void loadImages(IArchimateModel fModel, File folder) throws IOException {
     	IArchiveManager archiveManager = IArchiveManager.FACTORY.createArchiveManager(fModel);
+    	fModel.setAdapter(IArchiveManager.class, archiveManager);
+    	Map<String, byte[]> imagesByHash = new HashMap<String, byte[]>();
     	byte[] bytes;
     	
-    	// Add all images files
-    	for (File imageFile: folder.listFiles()) {
+    	// Only add images files which are referenced by the model
+    	// (image paths already start with the images folder name, see ArchiveManager.createArchiveImagePathname)
+    	for (String imagePath: imagePaths) {
+    		File imageFile = new File(folder, imagePath);
     		if (imageFile.isFile()) {
-    		      bytes = Files.readAllBytes(imageFile.toPath());
-    		      // /!\ This must match the prefix used in ArchiveManager.createArchiveImagePathname
-    		      archiveManager.addByteContentEntry("images/" + imageFile.getName(), bytes);
+    			long start = metrics.start();
+    			bytes = readFile(imageFile);
+    			metrics.addFileTime(imageFile, start);
+    			fileCount.incrementAndGet();
+    			byteCount.addAndGet(bytes.length);
+    			String hash = ContentHash.of(bytes);
+    			if (imagesByHash.containsKey(hash)) {
+    				bytes = imagesByHash.get(hash);
+    			} else {
+    				imagesByHash.put(hash, bytes);
+    			}
+    			archiveManager.addByteContentEntry(imagePath, bytes);
     		}
     	}
     }
     
-   
     /**
-     * Look for all eObject, and resolve proxies on known classes
+     * Read a file through a channel directly into an array of the right size
      * 
-     * @param object
+     * @param file
+     * @return
+     * @throws IOException
      */
-    private void resolveProxies(EObject object) {
-    	for(Iterator<EObject> iter = object.eAllContents(); iter.hasNext();) {
-            EObject eObject = iter.next();
-            
+    private byte[] readFile(File file) throws IOException {
+    	try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+    		long size = channel.size();
+    		if (size > Integer.MAX_VALUE) {
+    			throw new IOException("File too large: " + file); //$NON-NLS-1$
+    		}
+    		ByteBuffer buffer = ByteBuffer.allocate((int) size);
+    		while (buffer.hasRemaining() && channel.read(buffer) != -1) {
+    			// Keep reading
+    		}
+    		return buffer.array();
+    	}
+    }
+    
+   
+    /**
+     * Resolve proxies on all objects recorded while loading files
+     */
+    private void resolveProxies() {
+    	for (EObject eObject: proxyHolders) {
             if(eObject instanceof IArchimateRelationship) {
             	// Resolve proxies for Relations
             	IArchimateRelationship relation = (IArchimateRelationship) eObject;
@@ -177,7 +392,8 @@ public class MyImporter implements IModelImporter {
 			// Log errors if proxy has not been resolved
 			if (newObject == null) {
 				String message = String.format(Messages.MyImporter_3, ((InternalEObject) object).eProxyURI().fragment(), parent.getClass().getSimpleName(), parent.getId());
-				System.out.println(message);
+				metrics.warning(message);
+				metrics.count("unresolvedReferences", 1); //$NON-NLS-1$
 				// Create resolveError the first time	
 				if (resolveErrors == null)
 					resolveErrors = new MultiStatus("org.archicontribs.grafico", IStatus.ERROR, Messages.MyImporter_4, null); //$NON-NLS-1$
@@ -190,8 +406,25 @@ public class MyImporter implements IModelImporter {
 		}
 	}
     
-	private IArchimateModel loadModel(File folder) {
-		IArchimateModel model = (IArchimateModel) loadElement(new File(folder, MyExporter.FOLDER_XML));
+	/**
+	 * Load the model and all its folders. Files are parsed on the worker pool, then
+	 * the folder tree is assembled in the same order as a sequential load would do.
+	 * 
+	 * @param folder
+	 * @return
+	 * @throws IOException
+	 */
+	private IArchimateModel loadModel(File folder) throws IOException {
+		long start = metrics.start();
+		sharded = GraficoLayout.isSharded(folder);
+		
+		// Use the manifest written by the exporter (if any) instead of walking the folder
+		GraficoManifest manifest = readManifest(folder);
+		if (manifest != null) {
+			return loadModel(folder, manifest, start);
+		}
+		
+		IArchimateModel model = (IArchimateModel) register(loadFile(new File(folder, MyExporter.FOLDER_XML)));
 		IFolder tmpFolder;
 		
 		if (model != null) {
@@ -206,60 +439,304 @@ public class MyImporter implements IModelImporter {
 			folderList.add(FolderType.RELATIONS);
 			folderList.add(FolderType.DIAGRAMS);
 			
-			// Loop based on FolderType enumeration
+			// Schedule parsing of every file first...
+			List<PendingFolder> pendingFolders = new ArrayList<PendingFolder>();
 			for (int i = 0; i < folderList.size(); i++) {
-				if ((tmpFolder = loadFolder(new File(folder, folderList.get(i).toString()))) != null)
+				pendingFolders.add(scheduleFolder(new File(folder, folderList.get(i).toString())));
+			}
+			start = metrics.endPhase("scan", start); //$NON-NLS-1$
+			
+			// ...then build the tree (loop based on FolderType enumeration)
+			for (PendingFolder pendingFolder: pendingFolders) {
+				if ((tmpFolder = assembleFolder(pendingFolder)) != null)
 					model.getFolders().add(tmpFolder);
 			}
+			metrics.endPhase("parse", start); //$NON-NLS-1$
 		}
 		
 		return model;
 	}
 	
 	/**
-	 * Load each XML file to recreate original object
+	 * Read the manifest of a model folder (kept in the GRAFICO folder containing it), and check it against the files of this folder
+	 * 
+	 * @param folder
+	 * @return the manifest, or null if there is none or if it doesn't match the files
+	 */
+	private GraficoManifest readManifest(File folder) {
+		try {
+			GraficoManifest manifest = GraficoManifest.read(folder.getParentFile());
+			if (manifest == null || manifest.matches(folder, sharded)) {
+				return manifest;
+			}
+			metrics.warning("Manifest doesn't match files, folder is scanned instead"); //$NON-NLS-1$
+		} catch (IOException e) {
+			metrics.warning("Unable to read manifest, folder is scanned instead: " + e); //$NON-NLS-1$
+		}
+		return null;
+	}
+	
+	/**
+	 * Load the model and all its folders as listed in its manifest. Every file is scheduled at once
+	 * (views first, as they take longest to parse), then the tree is assembled in manifest order.
 	 * 
 	 * @param folder
+	 * @param manifest a manifest matching the files of the folder
+	 * @param start
 	 * @return
+	 * @throws IOException
 	 */
-    private IFolder loadFolder(File folder) {
+	private IArchimateModel loadModel(File folder, GraficoManifest manifest, long start) throws IOException {
+		// Size the lookup table for every object of the model
+		List<GraficoManifest.Entry> entries = manifest.getEntries();
+		idLookup = new HashMap<String, IIdentifier>(entries.size() * 4 / 3 + 1);
+		metrics.count("manifestEntries", entries.size()); //$NON-NLS-1$
+		
+		// Schedule parsing of every file first...
+		String viewsPrefix = FolderType.DIAGRAMS.toString() + "/"; //$NON-NLS-1$
+		Map<GraficoManifest.Entry, Future<LoadedFile>> pendingFiles = new HashMap<GraficoManifest.Entry, Future<LoadedFile>>(entries.size() * 4 / 3 + 1);
+		for (int pass = 0; pass < 2; pass++) {
+			for (GraficoManifest.Entry entry: entries) {
+				boolean view = !entry.isFolder() && entry.path.startsWith(viewsPrefix);
+				if (view == (pass == 0)) {
+					pendingFiles.put(entry, scheduleElement(new File(folder, entry.path)));
+				}
+			}
+		}
+		start = metrics.endPhase("scan", start); //$NON-NLS-1$
+		
+		// ...then build the tree
+		IArchimateModel model = (IArchimateModel) assembleEntry(manifest, manifest.getRoot(), pendingFiles);
+		metrics.endPhase("parse", start); //$NON-NLS-1$
+		return model;
+	}
+	
+	/**
+	 * Wait for the loading of an object listed in the manifest and (for a folder) add its elements and subfolders to it
+	 * 
+	 * @param manifest
+	 * @param entry
+	 * @param pendingFiles
+	 * @return
+	 * @throws IOException
+	 */
+	private EObject assembleEntry(GraficoManifest manifest, GraficoManifest.Entry entry, Map<GraficoManifest.Entry, Future<LoadedFile>> pendingFiles) throws IOException {
+		// Pending files are released as soon as they are assembled, so that only the model remains
+		EObject object = register(WorkerPool.get(pendingFiles.remove(entry)));
+		for (GraficoManifest.Entry child: manifest.getChildren(entry)) {
+			EObject childObject = assembleEntry(manifest, child, pendingFiles);
+			if (child.isFolder()) {
+				((IFolderContainer) object).getFolders().add((IFolder) childObject);
+			} else {
+				((IFolder) object).getElements().add(childObject);
+			}
+		}
+		return object;
+	}
+	
+	/**
+	 * Schedule the loading of each XML file needed to recreate original folder
+	 * 
+	 * @param folder
+	 * @return
+	 */
+    private PendingFolder scheduleFolder(File folder) {
     	if (!folder.isDirectory() || !(new File(folder, MyExporter.FOLDER_XML)).isFile()) {
     		return null;
     	}
     	
     	// Load folder object itself
-    	IFolder currentFolder = (IFolder) loadElement(new File(folder, MyExporter.FOLDER_XML));
+    	PendingFolder pendingFolder = new PendingFolder();
+    	pendingFolder.folder = scheduleElement(new File(folder, MyExporter.FOLDER_XML));
     	
-    	// Load each elements (except folder.xml) and add them to folder
-    	for (File fileOrFolder: folder.listFiles()) {
+    	// Load each elements (except folder.xml) and subfolders
+    	scheduleElements(folder, pendingFolder);
+    	
+    	return pendingFolder;
+    }
+    
+    /**
+     * Schedule the loading of elements and subfolders found in the directory of a folder (or in one of its shards)
+     * 
+     * @param directory
+     * @param pendingFolder
+     */
+    private void scheduleElements(File directory, PendingFolder pendingFolder) {
+    	for (File fileOrFolder: directory.listFiles()) {
     		if(!fileOrFolder.getName().equals(MyExporter.FOLDER_XML)) {
 				if (fileOrFolder.isFile()) {
-					currentFolder.getElements().add(loadElement(fileOrFolder));
+					pendingFolder.elements.add(scheduleElement(fileOrFolder));
+				} else if (sharded && GraficoLayout.isShard(fileOrFolder.getName())
+						&& !(new File(fileOrFolder, MyExporter.FOLDER_XML)).isFile()) {
+					// Shards hold elements of the folder itself
+					scheduleElements(fileOrFolder, pendingFolder);
 				} else {
-					currentFolder.getFolders().add(loadFolder(fileOrFolder));
+					pendingFolder.folders.add(scheduleFolder(fileOrFolder));
 				}
     		}
     	}
+    }
+    
+    /**
+     * Wait for the loading of a folder and add its elements and subfolders to it
+     * 
+     * @param pendingFolder
+     * @return
+     * @throws IOException
+     */
+    private IFolder assembleFolder(PendingFolder pendingFolder) throws IOException {
+    	if (pendingFolder == null) {
+    		return null;
+    	}
+    	
+    	IFolder currentFolder = (IFolder) register(WorkerPool.get(pendingFolder.folder));
+    	
+    	pendingFolder.folder = null;
+    	
+    	// Pending files are released as soon as they are assembled, so that only the model remains
+    	for (ListIterator<Future<LoadedFile>> iter = pendingFolder.elements.listIterator(); iter.hasNext();) {
+    		currentFolder.getElements().add(register(WorkerPool.get(iter.next())));
+    		iter.set(null);
+    	}
+    	for (ListIterator<PendingFolder> iter = pendingFolder.folders.listIterator(); iter.hasNext();) {
+    		IFolder tmpFolder = assembleFolder(iter.next());
+    		iter.set(null);
+    		if (tmpFolder != null)
+    			currentFolder.getFolders().add(tmpFolder);
+    	}
     	
     	return currentFolder;
     }
+    
+    private Future<LoadedFile> scheduleElement(final File file) {
+    	return workerPool.submit(new Callable<LoadedFile>() {
+    		@Override
+    		public LoadedFile call() throws IOException {
+    			return loadFile(file);
+    		}
+    	});
+    }
+    
+    /**
+     * Load a file and record the objects it contains which hold proxies (and the images they use).
+     * Can be called from any worker thread.
+     * 
+     * @param file
+     * @return
+     * @throws IOException
+     */
+    private LoadedFile loadFile(File file) throws IOException {
+    	long start = metrics.start();
+    	LoadedFile loadedFile = new LoadedFile();
+    	
+    	// Decode object from the cache if file hasn't changed, parse it (and add it to the cache) otherwise
+    	loadedFile.object = cache == null ? null : cache.get(file);
+    	if (loadedFile.object != null) {
+    		metrics.count("cachedFiles", 1); //$NON-NLS-1$
+    	} else {
+    		loadedFile.object = loadElement(file);
+    		if (cache != null) {
+    			cache.put(file, loadedFile.object);
+    		}
+    	}
+    	fileCount.incrementAndGet();
+    	byteCount.addAndGet(file.length());
+    	
+    	metrics.count("objects", indexProxyHolders(loadedFile)); //$NON-NLS-1$
+    	metrics.addTime("parse", start); //$NON-NLS-1$
+    	metrics.addFileTime(file, start);
+    	return loadedFile;
+    }
 
+    /**
+     * Record the objects of a loaded file which hold proxies (and the images they use)
+     * 
+     * @param loadedFile
+     * @return number of objects in this file
+     */
+    private int indexProxyHolders(LoadedFile loadedFile) {
+    	int objects = 1;
+    	if (loadedFile.object instanceof IArchimateRelationship) {
+    		loadedFile.proxyHolders.add(loadedFile.object);
+    	} else if (loadedFile.object instanceof IDiagramModel) {
+    		for(Iterator<EObject> iter = loadedFile.object.eAllContents(); iter.hasNext();) {
+    			EObject eObject = iter.next();
+    			objects++;
+    			if (eObject instanceof IDiagramModelArchimateObject || eObject instanceof IDiagramModelArchimateConnection || eObject instanceof IDiagramModelReference) {
+    				loadedFile.proxyHolders.add(eObject);
+    			}
+    			if (eObject instanceof IDiagramModelImageProvider && ((IDiagramModelImageProvider) eObject).getImagePath() != null) {
+    				loadedFile.imagePaths.add(((IDiagramModelImageProvider) eObject).getImagePath());
+    			}
+    		}
+    	}
+    	return objects;
+    }
+    
+    /**
+     * @param object a relationship or a view just loaded (or updated) from its file
+     * @return the objects it contains which hold proxies
+     */
+    List<EObject> getProxyHolders(EObject object) {
+    	LoadedFile loadedFile = new LoadedFile();
+    	loadedFile.object = object;
+    	indexProxyHolders(loadedFile);
+    	return loadedFile.proxyHolders;
+    }
+    
+    /**
+     * Resolve proxies of some objects against a lookup table
+     * (and update cross-references of the elements and relationships they use)
+     * 
+     * @param proxyHolders
+     * @param idLookup ID -> Object lookup table
+     * @return references which could not be resolved (or null if none)
+     */
+    MultiStatus resolveProxies(List<EObject> proxyHolders, Map<String, IIdentifier> idLookup) {
+    	this.idLookup = idLookup;
+    	this.proxyHolders = proxyHolders;
+    	resolveErrors = null;
+    	resolveProxies();
+    	return resolveErrors;
+    }
+    
     /**
      * Create an eObject from an XML file. Basically load a resource.
+     * Can be called from any worker thread.
      * 
      * @param file
      * @return
+     * @throws IOException
      */
-    private EObject loadElement(File file) {
+    private EObject loadElement(File file) throws IOException {
+    	if (!legacyReader) {
+    		return reader.get().load(file);
+    	}
+    	
     	// Create a new resource for selected file and add object to persist
-    	XMLResource resource = (XMLResource) resourceSet.getResource(URI.createFileURI(file.getAbsolutePath()), true);
+    	XMLResource resource = (XMLResource) resourceSet.get().getResource(URI.createFileURI(file.getAbsolutePath()), true);
     	resource.getDefaultLoadOptions().put(XMLResource.OPTION_ENCODING, "UTF-8"); //$NON-NLS-1$
-        IIdentifier element = (IIdentifier) resource.getContents().get(0);
-        
-        // Update an ID -> Object mapping table (used as a cache to resolve proxies)
-        idLookup.put(element.getId(), element);
-        
-        return element;
+    	EObject object = resource.getContents().get(0);
+    	
+    	// Detach object from its resource (proxies are resolved by id, not through the ResourceSet), then release the resource
+    	resource.getContents().clear();
+    	resourceSet.get().getResources().remove(resource);
+        return object;
+    }
+    
+    /**
+     * Update an ID -> Object mapping table (used as a cache to resolve proxies) and the index of proxies.
+     * This is done while assembling the tree so that the result doesn't depend on threads timing.
+     * 
+     * @param loadedFile
+     * @return
+     */
+    private EObject register(LoadedFile loadedFile) {
+    	IIdentifier element = (IIdentifier) loadedFile.object;
+    	idLookup.put(element.getId(), element);
+    	proxyHolders.addAll(loadedFile.proxyHolders);
+    	imagePaths.addAll(loadedFile.imagePaths);
+    	return element;
     }
     
     /**
@@ -282,4 +759,22 @@ public class MyImporter implements IModelImporter {
         
         return new File(path);
     }
+    
+    /**
+     * Files (being) loaded for a folder
+     */
+    private static class PendingFolder {
+    	Future<LoadedFile> folder;
+    	List<Future<LoadedFile>> elements = new ArrayList<Future<LoadedFile>>();
+    	List<PendingFolder> folders = new ArrayList<PendingFolder>();
+    }
+    
+    /**
+     * Object loaded from a file, with the objects it contains which hold proxies
+     */
+    private static class LoadedFile {
+    	EObject object;
+    	List<EObject> proxyHolders = new ArrayList<EObject>();
+    	List<String> imagePaths = new ArrayList<String>();
+    }
 }
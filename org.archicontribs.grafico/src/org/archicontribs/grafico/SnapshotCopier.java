@@ -0,0 +1,77 @@
+/**
+ * This program and the accompanying materials
+ * are made available under the terms of the License
+ * which accompanies this distribution in the file LICENSE.txt
+ */
+package org.archicontribs.grafico;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.eclipse.emf.common.util.URI;
+import org.eclipse.emf.ecore.EObject;
+import org.eclipse.emf.ecore.EReference;
+import org.eclipse.emf.ecore.InternalEObject;
+import org.eclipse.emf.ecore.util.EcoreUtil;
+
+import com.archimatetool.model.IArchimatePackage;
+import com.archimatetool.model.IIdentifier;
+
+
+/**
+ * Copier used to take a snapshot of the content of a single GRAFICO file:
+ * an element or a view with all its children, or a folder (or the model) without
+ * its subfolders and elements (which are saved in their own files).
+ * 
+ * References to objects outside of the snapshot are replaced by proxies pointing
+ * to the file in which these objects are saved (Class_id.xml#id), exactly like
+ * when the whole model was copied and each object saved in its own Resource.
+ * This way the live model is never modified nor fully copied.
+ */
+@SuppressWarnings("serial")
+class SnapshotCopier extends EcoreUtil.Copier {
+	
+	// Proxies created for objects outside of the snapshot
+	private Map<EObject, EObject> proxies = new HashMap<EObject, EObject>();
+	
+	/**
+	 * Take a snapshot of an object
+	 * 
+	 * @param object
+	 * @return
+	 */
+	static EObject snapshot(EObject object) {
+		SnapshotCopier copier = new SnapshotCopier();
+		EObject snapshot = copier.copy(object);
+		copier.copyReferences();
+		return snapshot;
+	}
+	
+	@Override
+	protected void copyContainment(EReference eReference, EObject eObject, EObject copyEObject) {
+		// Subfolders and elements are saved in their own files
+		if (eReference == IArchimatePackage.Literals.FOLDER_CONTAINER__FOLDERS || eReference == IArchimatePackage.Literals.FOLDER__ELEMENTS) {
+			return;
+		}
+		super.copyContainment(eReference, eObject, copyEObject);
+	}
+	
+	@Override
+	public EObject get(Object key) {
+		EObject copy = super.get(key);
+		if (copy == null && key instanceof IIdentifier) {
+			copy = proxies.get(key);
+			if (copy == null) {
+				copy = createProxy((IIdentifier) key);
+				proxies.put((EObject) key, copy);
+			}
+		}
+		return copy;
+	}
+	
+	private EObject createProxy(IIdentifier object) {
+		EObject proxy = EcoreUtil.create(object.eClass());
+		((InternalEObject) proxy).eSetProxyURI(URI.createFileURI(MyExporter.getFileName(object)).appendFragment(object.getId()));
+		return proxy;
+	}
+}
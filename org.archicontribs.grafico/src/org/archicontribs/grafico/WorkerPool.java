@@ -0,0 +1,109 @@
+/**
+ * This program and the accompanying materials
+ * are made available under the terms of the License
+ * which accompanies this distribution in the file LICENSE.txt
+ */
+package org.archicontribs.grafico;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.archimatetool.editor.preferences.Preferences;
+
+
+/**
+ * Fixed size pool of worker threads used to process GRAFICO files concurrently.
+ * With a single thread, tasks are run directly on the calling thread so that
+ * the sequential behaviour stays exactly the same.
+ */
+class WorkerPool {
+
+	private final ExecutorService executor;
+
+	WorkerPool(int threads) {
+		executor = threads > 1 ? Executors.newFixedThreadPool(threads, new WorkerThreadFactory()) : null;
+	}
+
+	/**
+	 * Get the number of threads to use from a preference (0 or unset means one per core)
+	 *
+	 * @param preference
+	 * @return
+	 */
+	static int getThreadCount(String preference) {
+		return getThreadCount(Preferences.STORE.getInt(preference));
+	}
+
+	/**
+	 * @param threads number of threads (0 means one per core)
+	 * @return
+	 */
+	static int getThreadCount(int threads) {
+		return threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+	}
+
+	/**
+	 * Schedule a task (or run it immediately if this pool is sequential)
+	 *
+	 * @param task
+	 * @return
+	 */
+	<T> Future<T> submit(Callable<T> task) {
+		if (executor == null) {
+			FutureTask<T> future = new FutureTask<T>(task);
+			future.run();
+			return future;
+		}
+		return executor.submit(task);
+	}
+
+	/**
+	 * Wait for the result of a task, rethrowing its original exception (if any)
+	 *
+	 * @param future
+	 * @return
+	 * @throws IOException
+	 */
+	static <T> T get(Future<T> future) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException)
+				throw (IOException) cause;
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			if (cause instanceof Error)
+				throw (Error) cause;
+			throw new IOException(cause);
+		}
+	}
+
+	void shutdown() {
+		if (executor != null) {
+			executor.shutdownNow();
+		}
+	}
+
+	private static class WorkerThreadFactory implements ThreadFactory {
+		private final AtomicInteger count = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, "GRAFICO worker " + count.incrementAndGet()); //$NON-NLS-1$
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}